@@ -110,7 +110,7 @@ public class DynamicJavaLib extends LuajavaLib {
 
     private Class<?> loadClass(String className) throws ClassNotFoundException {
         try {
-            return MIDletResourceLoader.classLoader.loadClass(className);
+            return MIDletResourceLoader.getClassLoader().loadClass(className);
         } catch (ClassNotFoundException e) {
             try {
                 return Thread.currentThread().getContextClassLoader().loadClass(className);
@@ -42,6 +42,15 @@ import org.microemu.device.j2se.J2SEMutableImage;
 public class NoUiDisplayComponent implements DisplayComponent {
 
 	private J2SEMutableImage displayImage = null;
+
+	// Reused for every repaint so the J2SEDisplayGraphics wrapping it is reused too
+	private Graphics displayGraphics = null;
+
+	private boolean lastFullScreenMode;
+
+	// GameCanvas buffer used instead of displayImage, see J2SEDeviceDisplay.getFrameSource()
+	private volatile J2SEMutableImage frameSource = null;
+
 	private DisplayRepaintListener displayRepaintListener;
 	
 	public void addDisplayRepaintListener(DisplayRepaintListener l) {
@@ -58,6 +67,28 @@ public class NoUiDisplayComponent implements DisplayComponent {
 		return displayImage;
 	}
 
+	/**
+	 * Read the screen of headless instance. Areas not painted because of EventDispatcher render policy are painted
+	 * first.
+	 * 
+	 * @return display image or <code>null</code> if nothing was painted yet. It is the GameCanvas buffer itself while
+	 *         it is presented directly, copy it when it is kept.
+	 */
+	public MutableImage captureDisplayImage() {
+		MIDletAccess ma = MIDletBridge.getMIDletAccess();
+		if (ma != null) {
+			DisplayAccess da = ma.getDisplayAccess();
+			if (da != null) {
+				da.render();
+			}
+		}
+		MutableImage image = frameSource;
+		if (image == null) {
+			image = displayImage;
+		}
+		return image;
+	}
+
 	public void repaintRequest(int x, int y, int width, int height) 
 	{
 		MIDletAccess ma = MIDletBridge.getMIDletAccess();
@@ -76,16 +107,40 @@ public class NoUiDisplayComponent implements DisplayComponent {
 		Device device = DeviceFactory.getDevice();
 
 		if (device != null) {
+			J2SEDeviceDisplay deviceDisplay = (J2SEDeviceDisplay) device.getDeviceDisplay();				
+			J2SEMutableImage source = deviceDisplay.getFrameSource();
+			if (source != null) {
+				// GameCanvas buffer is the frame, no copy to displayImage
+				frameSource = source;
+				fireDisplayRepaint(source);
+				return;
+			}
+			if (frameSource != null) {
+				// displayImage was not updated while frame source was used
+				frameSource = null;
+				x = 0;
+				y = 0;
+				width = current.getWidth();
+				height = current.getHeight();
+				deviceDisplay.invalidateControls();
+			}
+
 			if (displayImage == null) {
 				displayImage = new J2SEMutableImage(
 						device.getDeviceDisplay().getFullWidth(), device.getDeviceDisplay().getFullHeight());
+				displayGraphics = displayImage.getImage().getGraphics();
+				deviceDisplay.invalidateControls();
 			}
 					
-			Graphics gc = displayImage.getImage().getGraphics();
+			Graphics gc = displayGraphics;
 
-			J2SEDeviceDisplay deviceDisplay = (J2SEDeviceDisplay) device.getDeviceDisplay();				
-			if (!deviceDisplay.isFullScreenMode()) {
-				deviceDisplay.paintControls(gc);
+			boolean fullScreenMode = deviceDisplay.isFullScreenMode();
+			if (fullScreenMode != lastFullScreenMode) {
+				lastFullScreenMode = fullScreenMode;
+				deviceDisplay.invalidateControls();
+			}
+			if (!fullScreenMode) {
+				deviceDisplay.paintControlsIfChanged(gc);
 			}
 			deviceDisplay.paintDisplayable(gc, x, y, width, height);
 
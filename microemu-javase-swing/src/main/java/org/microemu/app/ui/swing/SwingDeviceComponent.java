@@ -44,8 +44,6 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.microedition.lcdui.Command;
 import javax.swing.JPanel;
@@ -53,6 +51,8 @@ import javax.swing.UIManager;
 
 import org.microemu.DisplayAccess;
 import org.microemu.DisplayComponent;
+import org.microemu.EmulatorInstance;
+import org.microemu.EmulatorScheduler;
 import org.microemu.MIDletAccess;
 import org.microemu.MIDletBridge;
 import org.microemu.app.Common;
@@ -74,6 +74,9 @@ public class SwingDeviceComponent extends JPanel implements KeyListener {
 
 	private static final long serialVersionUID = 1L;
 
+	// Instance of the thread creating the component, AWT event thread is not bound to it
+	private final EmulatorInstance instance = EmulatorInstance.getInstance();
+
 	SwingDisplayComponent dc;
 
 	J2SEButton prevOverButton;
@@ -94,11 +97,11 @@ public class SwingDeviceComponent extends JPanel implements KeyListener {
 
 	private int pressedY;
 
-	private static class MouseRepeatedTimerTask extends TimerTask {
+	private static class MouseRepeatedTimerTask implements Runnable {
 
 		private static final int DELAY = 100;
 
-		Timer timer;
+		EmulatorScheduler.Task scheduled;
 
 		Component source;
 
@@ -109,24 +112,22 @@ public class SwingDeviceComponent extends JPanel implements KeyListener {
 		static MouseRepeatedTimerTask task;
 
 		static void schedule(Component source, J2SEButton button, J2SEInputMethod inputMethod) {
-			if (task != null) {
-				task.cancel();
+			if ((task != null) && (task.scheduled != null)) {
+				task.scheduled.cancel();
 			}
 			task = new MouseRepeatedTimerTask();
 			task.source = source;
 			task.button = button;
 			task.inputMethod = inputMethod;
-			task.timer = new Timer();
-			task.timer.scheduleAtFixedRate(task, 5 * DELAY, DELAY);
+			task.scheduled = EmulatorScheduler.scheduleAtFixedRate(task, 5 * DELAY, DELAY);
 		}
 
 		static void stop() {
 			if (task != null) {
 				task.inputMethod = null;
-				if (task.timer != null) {
-					task.timer.cancel();
+				if (task.scheduled != null) {
+					task.scheduled.cancel();
 				}
-				task.cancel();
 				task = null;
 			}
 		}
@@ -241,7 +242,7 @@ public class SwingDeviceComponent extends JPanel implements KeyListener {
 				} else {
 					buf.append(e.getX()).append(",").append(e.getY());
 				}
-				Common.setStatusBar(buf.toString());
+				Common.setStatusBar(instance, buf.toString());
 			}
 
 			if (mouseButtonDown && pressedButton == null) {
@@ -279,6 +280,10 @@ public class SwingDeviceComponent extends JPanel implements KeyListener {
 		addMouseMotionListener(mouseMotionListener);
 	}
 
+	EmulatorInstance getEmulatorInstance() {
+		return instance;
+	}
+
 	public DisplayComponent getDisplayComponent() {
 		return dc;
 	}
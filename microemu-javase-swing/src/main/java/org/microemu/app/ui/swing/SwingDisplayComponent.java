@@ -29,6 +29,7 @@ package org.microemu.app.ui.swing;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -72,6 +73,22 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 	
 	private Graphics displayGraphics;
 
+	// Area of displayImage changed by current repaintRequest
+	private Rectangle damage = new Rectangle();
+
+	private boolean lastFullScreenMode;
+
+	// GameCanvas buffer presented instead of displayImage, see J2SEDeviceDisplay.getFrameSource()
+	private volatile J2SEMutableImage frameSource;
+
+	private static final long PRESENT_TIMEOUT = 100;
+
+	private final Object presentLock = new Object();
+
+	private int requestedFrame;
+
+	private int presentedFrame;
+
 	private SoftButton initialPressedSoftButton;
 
 	private DisplayRepaintListener displayRepaintListener;
@@ -189,7 +206,7 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 				int height = e.getY() - pressedPoint.y;
 				Point p = deviceCoordinate(DeviceFactory.getDevice().getDeviceDisplay(), pressedPoint);
 				buf.append(p.x).append(",").append(p.y).append(" ").append(width).append("x").append(height);
-				Common.setStatusBar(buf.toString());
+				Common.setStatusBar(deviceComponent.getEmulatorInstance(), buf.toString());
 			}
 
 			Device device = DeviceFactory.getDevice();
@@ -224,7 +241,7 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 				StringBuffer buf = new StringBuffer();
 				Point p = deviceCoordinate(DeviceFactory.getDevice().getDeviceDisplay(), e.getPoint());
 				buf.append(p.x).append(",").append(p.y);
-				Common.setStatusBar(buf.toString());
+				Common.setStatusBar(deviceComponent.getEmulatorInstance(), buf.toString());
 			}
 		}
 
@@ -263,6 +280,7 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 	public void init() {
 		synchronized (this) {
 			displayImage = null;
+			frameSource = null;
 			initialPressedSoftButton = null;
 		}
 	}
@@ -291,9 +309,57 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 	}
 
 	protected void paintComponent(Graphics g) {
-		if (displayImage != null) {
-			synchronized (displayImage) {
-				g.drawImage(displayImage.getImage(), 0, 0, null);
+		J2SEMutableImage image = frameSource;
+		if (image == null) {
+			image = displayImage;
+		}
+		if (image != null) {
+			synchronized (image) {
+				// RepaintManager sets clip to union of damaged areas, copy only them
+				Rectangle clip = g.getClipBounds();
+				if (clip == null) {
+					g.drawImage(image.getImage(), 0, 0, null);
+				} else {
+					int x2 = clip.x + clip.width;
+					int y2 = clip.y + clip.height;
+					g.drawImage(image.getImage(), clip.x, clip.y, x2, y2, clip.x, clip.y, x2, y2, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy damaged area of frame source to screen and wait until it is done. MIDlet thread is blocked in
+	 * flushGraphics meanwhile, so it does not draw into the buffer being presented.
+	 */
+	private void presentFrame(int x, int y, int width, int height) {
+		if (!isShowing()) {
+			return;
+		}
+		if (SwingUtilities.isEventDispatchThread()) {
+			paintImmediately(x, y, width, height);
+			return;
+		}
+		final Rectangle area = new Rectangle(x, y, width, height);
+		synchronized (presentLock) {
+			final int frame = ++requestedFrame;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					paintImmediately(area);
+					synchronized (presentLock) {
+						presentedFrame = frame;
+						presentLock.notifyAll();
+					}
+				}
+			});
+			long deadline = System.currentTimeMillis() + PRESENT_TIMEOUT;
+			long remaining;
+			while ((presentedFrame - frame < 0) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					presentLock.wait(remaining);
+				} catch (InterruptedException e) {
+					return;
+				}
 			}
 		}
 	}
@@ -316,31 +382,83 @@ public class SwingDisplayComponent extends JComponent implements DisplayComponen
 		if (device != null) {
 			J2SEDeviceDisplay deviceDisplay = (J2SEDeviceDisplay) device.getDeviceDisplay();
 
+			J2SEMutableImage source = deviceDisplay.getFrameSource();
+			int damageX, damageY, damageWidth, damageHeight;
 			synchronized (this) {
 				if (displayImage == null) {
 					displayImage = new J2SEMutableImage(
 							device.getDeviceDisplay().getFullWidth(), device.getDeviceDisplay().getFullHeight());
 					displayGraphics = displayImage.getImage().getGraphics();
+					deviceDisplay.invalidateControls();
 				}
 
-				synchronized (displayImage) {
-					deviceDisplay.paintDisplayable(displayGraphics, x, y, width, height);
-					if (!deviceDisplay.isFullScreenMode()) {
-						deviceDisplay.paintControls(displayGraphics);
+				if (source != null) {
+					// GameCanvas buffer is presented as is, no copy to displayImage
+					frameSource = source;
+					int x1 = Math.max(x, 0);
+					int y1 = Math.max(y, 0);
+					damage.setBounds(x1, y1, Math.min(x + width, source.getWidth()) - x1,
+							Math.min(y + height, source.getHeight()) - y1);
+					fireDisplayRepaint(source);
+					damageX = damage.x;
+					damageY = damage.y;
+					damageWidth = damage.width;
+					damageHeight = damage.height;
+				} else {
+					if (frameSource != null) {
+						// displayImage was not updated while frame source was presented
+						frameSource = null;
+						x = 0;
+						y = 0;
+						width = current.getWidth();
+						height = current.getHeight();
+						deviceDisplay.invalidateControls();
 					}
-				}
 
-				fireDisplayRepaint(displayImage);
+					boolean fullScreenMode = deviceDisplay.isFullScreenMode();
+					if (fullScreenMode != lastFullScreenMode) {
+						lastFullScreenMode = fullScreenMode;
+						deviceDisplay.invalidateControls();
+					}
+
+					damage.setBounds(0, 0, 0, 0);
+					synchronized (displayImage) {
+						deviceDisplay.paintDisplayable(displayGraphics, x, y, width, height, damage);
+						if (!fullScreenMode) {
+							if (!damage.isEmpty() && !isInside(damage, deviceDisplay.getDisplayPaintable())) {
+								// Displayable painted over controls
+								deviceDisplay.invalidateControls();
+							}
+							if (deviceDisplay.paintControlsIfChanged(displayGraphics)) {
+								damage.setBounds(0, 0, displayImage.getWidth(), displayImage.getHeight());
+							}
+						}
+					}
+
+					fireDisplayRepaint(displayImage);
+
+					damageX = damage.x;
+					damageY = damage.y;
+					damageWidth = damage.width;
+					damageHeight = damage.height;
+				}
 			}
 
-			if (deviceDisplay.isFullScreenMode()) {
-				repaint(x, y, width, height);
-			} else {
-				repaint(0, 0, displayImage.getWidth(), displayImage.getHeight());
+			if ((damageWidth > 0) && (damageHeight > 0)) {
+				if (source != null) {
+					presentFrame(damageX, damageY, damageWidth, damageHeight);
+				} else {
+					repaint(damageX, damageY, damageWidth, damageHeight);
+				}
 			}
 		}
 	}
 
+	private static boolean isInside(Rectangle r, org.microemu.device.impl.Rectangle area) {
+		return (r.x >= area.x) && (r.y >= area.y) && (r.x + r.width <= area.x + area.width)
+				&& (r.y + r.height <= area.y + area.height);
+	}
+
 	private void fireDisplayRepaint(MutableImage image) {
 		if (displayRepaintListener != null) {
 			displayRepaintListener.repaintInvoked(image);
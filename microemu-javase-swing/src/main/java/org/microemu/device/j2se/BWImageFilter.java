@@ -34,6 +34,7 @@ public class BWImageFilter extends RGBImageFilter
 {
 
   private double Yr, Yg, Yb;
+  private int backgroundRGB, foregroundRGB;
 
 
   public BWImageFilter ()
@@ -48,6 +49,10 @@ public class BWImageFilter extends RGBImageFilter
     this.Yg = Yg;
     this.Yb = Yb;
     canFilterIndexColorModel = true;
+    backgroundRGB = 
+        ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getBackgroundColor().getRGB();
+    foregroundRGB = 
+        ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getForegroundColor().getRGB();
   }
 
 
@@ -59,11 +64,9 @@ public class BWImageFilter extends RGBImageFilter
     int b = (rgb & 0x000000FF);
     int Y = (int)(Yr * r + Yg * g + Yb * b);
     if (Y > 127) {
-	    return a | 
-          ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getBackgroundColor().getRGB();
+	    return a | backgroundRGB;
 		} else {
-	    return a | 
-          ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getForegroundColor().getRGB();
+	    return a | foregroundRGB;
 		}
   }
 
@@ -36,6 +36,7 @@ public class GrayImageFilter extends RGBImageFilter
 
   private double Yr, Yg, Yb;
   private double Rr, Rg, Rb;
+  private Color foregroundColor;
 
 
   public GrayImageFilter ()
@@ -52,7 +53,7 @@ public class GrayImageFilter extends RGBImageFilter
     canFilterIndexColorModel = true;
     Color backgroundColor = 
         ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getBackgroundColor();    
-    Color foregroundColor = 
+    foregroundColor = 
         ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getForegroundColor();    
     Rr = (backgroundColor.getRed() - foregroundColor.getRed()) / 256d;
     Rg = (backgroundColor.getGreen() - foregroundColor.getGreen()) / 256d;
@@ -70,8 +71,6 @@ public class GrayImageFilter extends RGBImageFilter
     if (Y > 255) {
       Y = 255;
     }
-    Color foregroundColor = 
-        ((J2SEDeviceDisplay) DeviceFactory.getDevice().getDeviceDisplay()).getForegroundColor();    
     r = (int) (Rr * Y) + foregroundColor.getRed();
     g = (int) (Rg * Y) + foregroundColor.getGreen();
     b = (int) (Rb * Y) + foregroundColor.getBlue();
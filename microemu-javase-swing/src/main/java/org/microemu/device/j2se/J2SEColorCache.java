@@ -0,0 +1,143 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.j2se;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MIDP RGB to AWT Color open addressing hash table keyed by <code>int</code> RGB, lookups do not allocate or lock.
+ *
+ * One cache exists for each display color mode, so colors converted by different display filters never collide.
+ */
+public class J2SEColorCache {
+
+	/**
+	 * The table is cleared when it reaches this number of colors
+	 */
+	public static final int MAX_COLORS = 4096;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final Map /* <String, J2SEColorCache> */caches = new HashMap();
+
+	private static final class Entry {
+
+		final int rgb;
+
+		final Color color;
+
+		Entry(int rgb, Color color) {
+			this.rgb = rgb;
+			this.color = color;
+		}
+
+	}
+
+	/* Readers probe the table without locking, entries are immutable */
+	private volatile Entry[] table;
+
+	private int count;
+
+	private J2SEColorCache() {
+		table = new Entry[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * @param colorModeKey
+	 *            identifies conversion of MIDP colors to display colors
+	 */
+	public static J2SEColorCache getInstance(String colorModeKey) {
+		synchronized (caches) {
+			J2SEColorCache cache = (J2SEColorCache) caches.get(colorModeKey);
+			if (cache == null) {
+				cache = new J2SEColorCache();
+				caches.put(colorModeKey, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @return color or <code>null</code> if color is not in cache
+	 */
+	public Color get(int rgb) {
+		Entry[] t = table;
+		int mask = t.length - 1;
+		for (int i = hash(rgb) & mask;; i = (i + 1) & mask) {
+			Entry e = t[i];
+			if (e == null) {
+				return null;
+			}
+			if (e.rgb == rgb) {
+				return e.color;
+			}
+		}
+	}
+
+	public synchronized void put(int rgb, Color color) {
+		if (count >= MAX_COLORS) {
+			table = new Entry[INITIAL_CAPACITY];
+			count = 0;
+		} else if (count * 2 >= table.length) {
+			Entry[] old = table;
+			Entry[] t = new Entry[old.length * 2];
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != null) {
+					insert(t, old[i]);
+				}
+			}
+			table = t;
+		}
+		if (insert(table, new Entry(rgb, color))) {
+			count++;
+		}
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private static boolean insert(Entry[] t, Entry entry) {
+		int mask = t.length - 1;
+		for (int i = hash(entry.rgb) & mask;; i = (i + 1) & mask) {
+			if (t[i] == null) {
+				t[i] = entry;
+				return true;
+			}
+			if (t[i].rgb == entry.rgb) {
+				t[i] = entry;
+				return false;
+			}
+		}
+	}
+
+	private static int hash(int rgb) {
+		int h = rgb * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
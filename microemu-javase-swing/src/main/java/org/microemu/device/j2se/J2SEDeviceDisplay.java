@@ -29,8 +29,10 @@ package org.microemu.device.j2se;
 
 import org.microemu.DisplayAccess;
 import org.microemu.EmulatorContext;
+import org.microemu.GameCanvasKeyAccess;
 import org.microemu.MIDletAccess;
 import org.microemu.MIDletBridge;
+import org.microemu.app.classloader.MIDletClassLoader;
 import org.microemu.app.util.IOUtils;
 import org.microemu.device.Device;
 import org.microemu.device.DeviceFactory;
@@ -45,6 +47,7 @@ import org.microemu.device.impl.*;
 import javax.microedition.lcdui.Canvas;
 import javax.microedition.lcdui.Displayable;
 import javax.microedition.lcdui.Image;
+import javax.microedition.lcdui.game.GameCanvas;
 import javax.microedition.lcdui.game.Sprite;
 import java.awt.Font;
 import java.awt.*;
@@ -52,15 +55,23 @@ import java.awt.image.BufferedImage;
 import java.awt.image.FilteredImageSource;
 import java.awt.image.ImageFilter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
 public class J2SEDeviceDisplay implements DeviceDisplayImpl {
+    /**
+     * Present offscreen buffer of GameCanvas covering whole display instead of painting it to display image
+     */
+    public static boolean directFrameSource = true;
+
     EmulatorContext context;
 
     Rectangle displayRectangle;
@@ -85,6 +96,23 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
 
     boolean resizable;
 
+    // Color conversion shared by all J2SEDisplayGraphics, recreated when display colors change
+    private boolean graphicsConfigValid = false;
+
+    private java.awt.image.RGBImageFilter graphicsFilter;
+
+    private J2SEColorCache graphicsColorCache;
+
+    // Reused by paintDisplayable while painting to the same AWT Graphics
+    private J2SEDisplayGraphics displayGraphics;
+
+    // Soft button state (visible, pressed, command) and input mode painted by last paintControlsIfChanged
+    private boolean controlsValid = false;
+
+    private Object[] paintedControls;
+
+    private int paintedInputMode;
+
     public J2SEDeviceDisplay(EmulatorContext context) {
         this.context = context;
     }
@@ -164,7 +192,107 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
         }
     }
 
+    /**
+     * Paint soft buttons and input mode icon only when their state changed since last call or controls were
+     * invalidated.
+     *
+     * @return <code>true</code> when controls were painted
+     */
+    public synchronized boolean paintControlsIfChanged(Graphics g) {
+        if (!updateControlsState() && controlsValid) {
+            return false;
+        }
+        paintControls(g);
+        controlsValid = true;
+        return true;
+    }
+
+    /**
+     * Force repaint of controls by next paintControlsIfChanged, e.g. when display image was recreated or displayable
+     * painted over them.
+     */
+    public synchronized void invalidateControls() {
+        controlsValid = false;
+    }
+
+    /**
+     * @return <code>true</code> when soft buttons or input mode changed since last call
+     */
+    private boolean updateControlsState() {
+        Device device = DeviceFactory.getDevice();
+        Vector buttons = device.getSoftButtons();
+        boolean changed = false;
+        int size = buttons.size() * 3;
+        if ((paintedControls == null) || (paintedControls.length != size)) {
+            paintedControls = new Object[size];
+            changed = true;
+        }
+        for (int i = 0; i < buttons.size(); i++) {
+            SoftButton button = (SoftButton) buttons.elementAt(i);
+            changed |= updateControlState(i * 3, button.isVisible() ? Boolean.TRUE : Boolean.FALSE);
+            changed |= updateControlState(i * 3 + 1, button.isPressed() ? Boolean.TRUE : Boolean.FALSE);
+            changed |= updateControlState(i * 3 + 2, button.getCommand());
+        }
+        int inputMode = device.getInputMethod().getInputMode();
+        if (inputMode != paintedInputMode) {
+            paintedInputMode = inputMode;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean updateControlState(int index, Object state) {
+        if (paintedControls[index] == state) {
+            return false;
+        }
+        paintedControls[index] = state;
+        return true;
+    }
+
+    /**
+     * Display components present returned image directly, Canvas.paint would only copy it to display image.
+     *
+     * @return offscreen buffer of current GameCanvas that does not override paint and covers whole display or
+     *         <code>null</code>
+     */
+    public J2SEMutableImage getFrameSource() {
+        if (!directFrameSource) {
+            return null;
+        }
+        MIDletAccess ma = MIDletBridge.getMIDletAccess();
+        if (ma == null) {
+            return null;
+        }
+        DisplayAccess da = ma.getDisplayAccess();
+        if (da == null) {
+            return null;
+        }
+        Displayable current = da.getCurrent();
+        if (!(current instanceof GameCanvas) || current.getWidth() != displayRectangle.width
+                || current.getHeight() != displayRectangle.height) {
+            return null;
+        }
+        GameCanvasKeyAccess access = MIDletBridge.getGameCanvasKeyAccess((GameCanvas) current);
+        if (access == null) {
+            return null;
+        }
+        Image buffer = access.getFrameBuffer((GameCanvas) current);
+        if (!(buffer instanceof J2SEMutableImage) || buffer.getWidth() != displayRectangle.width
+                || buffer.getHeight() != displayRectangle.height) {
+            return null;
+        }
+        return (J2SEMutableImage) buffer;
+    }
+
     public void paintDisplayable(Graphics g, int x, int y, int width, int height) {
+        paintDisplayable(g, x, y, width, height, null);
+    }
+
+    /**
+     * @param damage
+     *            when not <code>null</code> area of display image painted is added to it
+     */
+    public void paintDisplayable(Graphics g, int x, int y, int width, int height, java.awt.Rectangle damage) {
         MIDletAccess ma = MIDletBridge.getMIDletAccess();
         if (ma == null) {
             return;
@@ -181,17 +309,42 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
         g.setColor(foregroundColor);
 
         java.awt.Shape oldclip = g.getClip();
+        int offsetX = 0;
+        int offsetY = 0;
         if (!(current instanceof Canvas) || current.getWidth() != displayRectangle.width || current.getHeight() != displayRectangle.height) {
+            offsetX = displayPaintable.x;
+            offsetY = displayPaintable.y;
             g.translate(displayPaintable.x, displayPaintable.y);
         }
         g.setClip(x, y, width, height);
         Font font = g.getFont();
-        da.paint(new J2SEDisplayGraphics((java.awt.Graphics2D) g, getDisplayImage()));
+        MutableImage displayImage = getDisplayImage();
+        if ((displayGraphics == null) || (displayGraphics.getGraphics() != g) || (displayGraphics.getImage() != displayImage)) {
+            displayGraphics = new J2SEDisplayGraphics((java.awt.Graphics2D) g, displayImage);
+        } else {
+            displayGraphics.reset((java.awt.Graphics2D) g, displayImage);
+        }
+        da.paint(displayGraphics);
         g.setFont(font);
         if (!(current instanceof Canvas) || current.getWidth() != displayRectangle.width || current.getHeight() != displayRectangle.height) {
             g.translate(-displayPaintable.x, -displayPaintable.y);
         }
         g.setClip(oldclip);
+
+        if (damage != null) {
+            int x1 = Math.max(x + offsetX, 0);
+            int y1 = Math.max(y + offsetY, 0);
+            int x2 = Math.min(x + offsetX + width, displayRectangle.width);
+            int y2 = Math.min(y + offsetY + height, displayRectangle.height);
+            if ((x1 < x2) && (y1 < y2)) {
+                if (damage.isEmpty()) {
+                    damage.setBounds(x1, y1, x2 - x1, y2 - y1);
+                } else {
+                    damage.add(x1, y1);
+                    damage.add(x2, y2);
+                }
+            }
+        }
     }
 
     public void repaint(int x, int y, int width, int height) {
@@ -293,26 +446,71 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
         img.setRGB(0, 0, width, height, rgb, 0, width);
 
         // now apply the corresponding filter
-        ImageFilter filter = null;
+        java.awt.image.RGBImageFilter filter = createImageFilter();
+        if (filter != null) {
+            filterPixels(img, filter);
+        }
+        return new J2SEImmutableImage(img);
+    }
+
+    /**
+     * Apply display color filter to all pixels of TYPE_INT_ARGB image in place
+     */
+    private static void filterPixels(BufferedImage img, java.awt.image.RGBImageFilter filter) {
+        int[] pixels = J2SERaster.getPixels(img);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                pixels[i] = filter.filterRGB(x, y, pixels[i]);
+            }
+        }
+    }
+
+    // Colors changed, filter and color cache are created again on next use
+    private synchronized void invalidateGraphicsConfig() {
+        graphicsConfigValid = false;
+    }
+
+    private synchronized void checkGraphicsConfig() {
+        if (!graphicsConfigValid) {
+            graphicsFilter = createImageFilter();
+            graphicsColorCache = J2SEColorCache.getInstance(getColorModeKey());
+            graphicsConfigValid = true;
+        }
+    }
+
+    /**
+     * @return filter used by J2SEDisplayGraphics to convert colors or <code>null</code>
+     */
+    synchronized java.awt.image.RGBImageFilter getGraphicsFilter() {
+        checkGraphicsConfig();
+        return graphicsFilter;
+    }
+
+    synchronized J2SEColorCache getGraphicsColorCache() {
+        checkGraphicsConfig();
+        return graphicsColorCache;
+    }
+
+    /**
+     * @return filter converting colors to device display or <code>null</code> if colors are not changed
+     */
+    private java.awt.image.RGBImageFilter createImageFilter() {
         if (isColor()) {
             if (backgroundColor.getRed() != 255 || backgroundColor.getGreen() != 255
                     || backgroundColor.getBlue() != 255 || foregroundColor.getRed() != 0
                     || foregroundColor.getGreen() != 0 || foregroundColor.getBlue() != 0) {
-                filter = new RGBImageFilter();
+                return new RGBImageFilter();
             }
+            return null;
         } else {
             if (numColors() == 2) {
-                filter = new BWImageFilter();
+                return new BWImageFilter();
             } else {
-                filter = new GrayImageFilter();
+                return new GrayImageFilter();
             }
         }
-        if (filter != null) {
-            FilteredImageSource imageSource = new FilteredImageSource(img.getSource(), filter);
-            return new J2SEImmutableImage(Toolkit.getDefaultToolkit().createImage(imageSource));
-        } else {
-            return new J2SEImmutableImage(img);
-        }
     }
 
     public Image createImage(Image image, int x, int y, int width, int height, int transform) {
@@ -321,6 +519,24 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
         if (x + width > image.getWidth() || y + height > image.getHeight() || width <= 0 || height <= 0 || x < 0
                 || y < 0)
             throw new IllegalArgumentException("Area out of Image");
+        if (transform < 0 || transform > 7)
+            throw new IllegalArgumentException("Bad transform");
+
+        if (getGraphicsFilter() == null) {
+            // Single copy, transformed regions of immutable images are shared
+            if (image instanceof J2SEImmutableImage) {
+                if (J2SEImmutableImage.regionCacheMaxSize > 0) {
+                    return new J2SEImmutableImage(((J2SEImmutableImage) image).getTransformedRegion(x, y, width,
+                            height, transform));
+                }
+            } else {
+                int[] pixels = J2SERaster.getPixels(((J2SEMutableImage) image).getImage());
+                if (pixels != null) {
+                    return new J2SEImmutableImage(J2SERaster.createRegion(pixels, image.getWidth(), false, x, y,
+                            width, height, transform));
+                }
+            }
+        }
 
         int[] rgbData = new int[height * width];
         int[] rgbTransformedData = new int[height * width];
@@ -413,9 +629,8 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
     // Andres Navarro
 
     public Image createImage(byte[] imageData, int imageOffset, int imageLength) {
-        ByteArrayInputStream is = new ByteArrayInputStream(imageData, imageOffset, imageLength);
         try {
-            return getImage(is);
+            return getImage(imageData, imageOffset, imageLength);
         } catch (IOException ex) {
             throw new IllegalArgumentException(ex.toString());
         }
@@ -432,6 +647,7 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setNumColors(int i) {
         numColors = i;
+        invalidateGraphicsConfig();
     }
 
     /*
@@ -441,6 +657,7 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setIsColor(boolean b) {
         isColor = b;
+        invalidateGraphicsConfig();
     }
 
     /*
@@ -450,6 +667,8 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setBackgroundColor(Color color) {
         backgroundColor = new java.awt.Color(color.getRGB());
+        invalidateGraphicsConfig();
+        invalidateControls();
     }
 
     /*
@@ -459,6 +678,8 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setForegroundColor(Color color) {
         foregroundColor = new java.awt.Color(color.getRGB());
+        invalidateGraphicsConfig();
+        invalidateControls();
     }
 
     /*
@@ -468,6 +689,7 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setDisplayRectangle(Rectangle rectangle) {
         displayRectangle = rectangle;
+        invalidateControls();
     }
 
     /*
@@ -477,6 +699,7 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
      */
     public void setDisplayPaintable(Rectangle rectangle) {
         displayPaintable = rectangle;
+        invalidateControls();
     }
 
     /*
@@ -531,42 +754,103 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl {
         if (midlet == null) {
             midlet = getClass();
         }
-        InputStream is = midlet.getClass().getResourceAsStream(str);
+        Class resourceClass = midlet.getClass();
+
+        String cacheKey = null;
+        if ((J2SEImageCache.getMaxSize() > 0) && (resourceClass.getClassLoader() instanceof MIDletClassLoader)) {
+            String resourceName = resolveResourceName(resourceClass, str);
+            String jarHash = ((MIDletClassLoader) resourceClass.getClassLoader()).getResourceJarHash(resourceName);
+            if (jarHash != null) {
+                cacheKey = J2SEImageCache.getKey(jarHash, resourceName, getColorModeKey());
+                Image image = J2SEImageCache.get(cacheKey);
+                if (image != null) {
+                    return image;
+                }
+            }
+        }
+
+        InputStream is = resourceClass.getResourceAsStream(str);
 
         if (is == null) {
             throw new IOException(str + " could not be found.");
         }
+        Image image;
         try {
-            return getImage(is);
+            image = getImage(is);
         } finally {
             IOUtils.closeQuietly(is);
         }
+        if ((cacheKey != null) && (image instanceof J2SEImmutableImage)) {
+            J2SEImageCache.put(cacheKey, (J2SEImmutableImage) image);
+        }
+        return image;
     }
 
-    private Image getImage(InputStream is) throws IOException {
-        byte[] imageBytes = new byte[1024];
-        int num;
-        ByteArrayOutputStream ba = new ByteArrayOutputStream();
-        while ((num = is.read(imageBytes)) != -1) {
-            ba.write(imageBytes, 0, num);
+    /**
+     * Same as Class.getResourceAsStream resolves name before passing it to ClassLoader
+     */
+    private static String resolveResourceName(Class c, String name) {
+        if (name.startsWith("/")) {
+            return name.substring(1);
+        }
+        String className = c.getName();
+        int index = className.lastIndexOf('.');
+        if (index == -1) {
+            return name;
         }
+        return className.substring(0, index).replace('.', '/') + "/" + name;
+    }
 
-        java.awt.Image image = Toolkit.getDefaultToolkit().createImage(ba.toByteArray());
+    /**
+     * @return key of colors conversion done by createImageFilter()
+     */
+    String getColorModeKey() {
+        return (isColor() ? "c" : "g" + numColors()) + ":" + Integer.toHexString(backgroundColor.getRGB()) + ":"
+                + Integer.toHexString(foregroundColor.getRGB());
+    }
 
-        ImageFilter filter = null;
-        if (isColor()) {
-            if (backgroundColor.getRed() != 255 || backgroundColor.getGreen() != 255
-                    || backgroundColor.getBlue() != 255 || foregroundColor.getRed() != 0
-                    || foregroundColor.getGreen() != 0 || foregroundColor.getBlue() != 0) {
-                filter = new RGBImageFilter();
-            }
+    private Image getImage(InputStream is) throws IOException {
+        byte[] imageBytes = IOUtils.toByteArray(is, is.available());
+        return getImage(imageBytes, 0, imageBytes.length);
+    }
+
+    /**
+     * Decode image on calling thread to TYPE_INT_ARGB BufferedImage. Formats not supported by ImageIO are loaded by
+     * Toolkit.
+     */
+    private Image getImage(byte[] imageBytes, int offset, int length) throws IOException {
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(imageBytes, offset, length));
+        BufferedImage decoded;
+        try {
+            decoded = ImageIO.read(iis);
+        } finally {
+            iis.close();
+        }
+        if (decoded == null) {
+            return getToolkitImage(imageBytes, offset, length);
+        }
+
+        BufferedImage argb;
+        if (J2SERaster.getPixels(decoded) != null && decoded.getType() == BufferedImage.TYPE_INT_ARGB) {
+            argb = decoded;
         } else {
-            if (numColors() == 2) {
-                filter = new BWImageFilter();
-            } else {
-                filter = new GrayImageFilter();
-            }
+            int width = decoded.getWidth();
+            int height = decoded.getHeight();
+            argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            decoded.getRGB(0, 0, width, height, J2SERaster.getPixels(argb), 0, width);
+        }
+
+        java.awt.image.RGBImageFilter filter = createImageFilter();
+        if (filter != null) {
+            filterPixels(argb, filter);
         }
+        return new J2SEImmutableImage(argb);
+    }
+
+    private Image getToolkitImage(byte[] imageBytes, int offset, int length) throws IOException {
+        java.awt.Image image = Toolkit.getDefaultToolkit().createImage(imageBytes, offset, length);
+
+        ImageFilter filter = createImageFilter();
         java.awt.Image resultImage;
         if (filter != null) {
             FilteredImageSource imageSource = new FilteredImageSource(image.getSource(), filter);
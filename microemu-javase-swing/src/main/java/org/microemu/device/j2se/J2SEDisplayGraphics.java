@@ -32,8 +32,8 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
 
 import javax.microedition.lcdui.Image;
 import javax.microedition.lcdui.game.Sprite;
@@ -45,9 +45,11 @@ import org.microemu.device.MutableImage;
 
 public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics implements DisplayGraphics {
 
-    // TODO use IntHashMap
-    private static HashMap colorCache = new HashMap();
-    
+    /**
+     * Draw fills, axis aligned lines, images and RGB data directly to image pixels instead of Java2D
+     */
+    public static boolean directRaster = true;
+
     private java.awt.Graphics2D g;
 
     // Andres Navarro
@@ -63,18 +65,55 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
 
     private java.awt.image.RGBImageFilter filter = null;
 
+    private J2SEColorCache colorCache;
+
+    // Target image pixels when direct raster drawing is possible
+    private int[] pixels = null;
+
+    private int pixelsWidth;
+
+    private int pixelsHeight;
+
+    // Device translation of a_g when created
+    private int originX;
+
+    private int originY;
+
+    private int pixelColor = 0xff000000;
+
+    // Clip in image pixels, computed by rasterClip()
+    private int clipX1, clipY1, clipX2, clipY2;
+
+    private J2SEFontManager fontManager;
+
     // Andres Navarro
     public J2SEDisplayGraphics(java.awt.Graphics2D a_g, MutableImage a_image)
     // Andres Navarro
     {
+        Device device = DeviceFactory.getDevice();
+        this.fontManager = (J2SEFontManager) device.getFontManager();
+
+        J2SEDeviceDisplay display = (J2SEDeviceDisplay) device.getDeviceDisplay();
+        this.filter = display.getGraphicsFilter();
+        this.colorCache = display.getGraphicsColorCache();
+
+        reset(a_g, a_image);
+    }
+
+    /**
+     * Prepare this object for painting to new target, state is the same as of newly created object.
+     */
+    void reset(java.awt.Graphics2D a_g, MutableImage a_image) {
         this.g = a_g;
         this.image = a_image;
-        
-        this.clip = a_g.getClipBounds();
 
-        Device device = DeviceFactory.getDevice();
-        J2SEFontManager fontManager = (J2SEFontManager) device.getFontManager();
+        this.clip = a_g.getClipBounds();
+        super.translate(-getTranslateX(), -getTranslateY());
+        this.color = 0;
+        this.pixelColor = a_g.getColor().getRGB();
+        setStrokeStyle(SOLID);
 
+        currentFont = javax.microedition.lcdui.Font.getDefaultFont();
         J2SEFont tmpFont = (J2SEFont) fontManager.getFont(currentFont);
         this.g.setFont(tmpFont.getFont());
         if (fontManager.getAntialiasing()) {
@@ -83,17 +122,18 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
             this.g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
         }
 
-        J2SEDeviceDisplay display = (J2SEDeviceDisplay) device.getDeviceDisplay();
-        if (display.isColor()) {
-            if (display.backgroundColor.getRed() != 255 || display.backgroundColor.getGreen() != 255 || display.backgroundColor.getBlue() != 255 ||
-                    display.foregroundColor.getRed() != 0 || display.foregroundColor.getGreen() != 0 || display.foregroundColor.getBlue() != 0) {
-                this.filter = new RGBImageFilter();
-            }
-        } else {
-            if (display.numColors() == 2) {
-                this.filter = new BWImageFilter();
-            } else {
-                this.filter = new GrayImageFilter();
+        this.pixels = null;
+        if (directRaster && (a_image instanceof J2SEMutableImage)) {
+            java.awt.Image target = ((J2SEMutableImage) a_image).getImage();
+            AffineTransform t = a_g.getTransform();
+            // a_g should paint to a_image without scaling
+            if (((t.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0) && (t.getTranslateX() == (int) t.getTranslateX())
+                    && (t.getTranslateY() == (int) t.getTranslateY())) {
+                this.pixels = J2SERaster.getPixels(target);
+                this.pixelsWidth = target.getWidth(null);
+                this.pixelsHeight = target.getHeight(null);
+                this.originX = (int) t.getTranslateX();
+                this.originY = (int) t.getTranslateY();
             }
         }
     }
@@ -109,16 +149,17 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
     public void setColor(int RGB) {
         color = RGB;
         
-        Color awtColor = (Color) colorCache.get(new Integer(RGB));
+        Color awtColor = colorCache.get(RGB);
         if (awtColor == null) {
             if (filter != null) {
                 awtColor = new Color(filter.filterRGB(0, 0, color));
             } else {
                 awtColor = new Color(RGB);
             }
-            colorCache.put(new Integer(RGB), awtColor);
+            colorCache.put(RGB, awtColor);
         }
         g.setColor(awtColor);
+        pixelColor = awtColor.getRGB();
     }
 
     public javax.microedition.lcdui.Font getFont() {
@@ -184,14 +225,34 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
             newy -= img.getHeight() / 2;
         }
 
+        java.awt.Image awtImage;
         if (img.isMutable()) {
-            g.drawImage(((J2SEMutableImage) img).getImage(), newx, newy, null);
+            awtImage = ((J2SEMutableImage) img).getImage();
         } else {
-            g.drawImage(((J2SEImmutableImage) img).getImage(), newx, newy, null);
+            awtImage = ((J2SEImmutableImage) img).getImage();
         }
+        if (pixels != null) {
+            int[] srcPixels = J2SERaster.getPixels(awtImage);
+            if ((srcPixels != null) && (srcPixels != pixels)) {
+                int w = img.getWidth();
+                int h = img.getHeight();
+                rasterRegion(srcPixels, w, J2SERaster.hasAlpha(awtImage), 0, 0, w, h, Sprite.TRANS_NONE, newx, newy, w, h);
+                return;
+            }
+        }
+        g.drawImage(awtImage, newx, newy, null);
     }
 
     public void drawLine(int x1, int y1, int x2, int y2) {
+        if (pixels != null) {
+            if (y1 == y2) {
+                rasterFill(Math.min(x1, x2), y1, Math.abs(x2 - x1) + 1, 1);
+                return;
+            } else if (x1 == x2) {
+                rasterFill(x1, Math.min(y1, y2), 1, Math.abs(y2 - y1) + 1);
+                return;
+            }
+        }
         g.drawLine(x1, y1, x2, y2);
     }
 
@@ -237,6 +298,10 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
     }
 
     public void fillRect(int x, int y, int width, int height) {
+        if (pixels != null) {
+            rasterFill(x, y, width, height);
+            return;
+        }
         g.fillRect(x, y, width, height);
     }
 
@@ -265,7 +330,7 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
         // check this if the implementation of getGraphics change so
         // as to return different Graphic Objects on each call to
         // getGraphics
-        if (src.isMutable() && src.getGraphics() == this)
+        if (src.isMutable() && src == image)
             throw new IllegalArgumentException("Image is source and target");
 
         java.awt.Image img;
@@ -381,6 +446,29 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
         if (badAnchor)
             throw new IllegalArgumentException("Bad Anchor");
 
+        if ((transform != Sprite.TRANS_NONE) && (!src.isMutable()) && (J2SEImmutableImage.regionCacheMaxSize > 0)
+                && J2SEImmutableImage.isRegionCacheable(width, height)) {
+            // Pre-transformed copy, drawn as plain blit; regions too large for the cache are transformed directly
+            BufferedImage region = ((J2SEImmutableImage) src).getTransformedRegion(x_src, y_src, width, height,
+                    transform);
+            if (pixels != null) {
+                rasterRegion(J2SERaster.getPixels(region), dW, J2SERaster.hasAlpha(region), 0, 0, dW, dH,
+                        Sprite.TRANS_NONE, x_dst, y_dst, dW, dH);
+            } else {
+                g.drawImage(region, x_dst, y_dst, null);
+            }
+            return;
+        }
+
+        if (pixels != null) {
+            int[] srcPixels = J2SERaster.getPixels(img);
+            if ((srcPixels != null) && (srcPixels != pixels)) {
+                rasterRegion(srcPixels, src.getWidth(), J2SERaster.hasAlpha(img), x_src, y_src, width, height, transform,
+                        x_dst, y_dst, dW, dH);
+                return;
+            }
+        }
+
         java.awt.geom.AffineTransform savedT = g.getTransform();
 
         g.translate(x_dst, y_dst);
@@ -409,7 +497,20 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
         if (width < 0 || height < 0 || offset < 0 || offset >= l || (scanlength < 0 && scanlength * (height - 1) < 0)
                 || (scanlength >= 0 && scanlength * (height - 1) + width - 1 >= l))
             throw new ArrayIndexOutOfBoundsException();
-        
+
+        if (pixels != null) {
+            if (!rasterClip(x, y, width, height)) {
+                return;
+            }
+            int tx = originX + getTranslateX();
+            int ty = originY + getTranslateY();
+            int skipX = clipX1 - (x + tx);
+            int skipY = clipY1 - (y + ty);
+            J2SERaster.drawRGB(rgbData, offset + skipY * scanlength + skipX, scanlength, processAlpha, pixels,
+                    pixelsWidth, clipX1, clipY1, clipX2 - clipX1, clipY2 - clipY1);
+            return;
+        }
+
         BufferedImage targetImage = (BufferedImage) ((J2SEMutableImage) image).getImage();
         if (!processAlpha) {
         	int[] rgb = new int[width * height];
@@ -494,4 +595,49 @@ public class J2SEDisplayGraphics extends javax.microedition.lcdui.Graphics imple
         return g;
     }
 
+    /**
+     * Intersect rectangle given in current coordinates with clip and image bounds.
+     * 
+     * @return false if nothing is visible
+     */
+    private boolean rasterClip(int x, int y, int width, int height) {
+        if ((width <= 0) || (height <= 0)) {
+            return false;
+        }
+        int tx = originX + getTranslateX();
+        int ty = originY + getTranslateY();
+        int x1 = x + tx;
+        int y1 = y + ty;
+        int x2 = x1 + width;
+        int y2 = y1 + height;
+        if (clip != null) {
+            x1 = Math.max(x1, clip.x + tx);
+            y1 = Math.max(y1, clip.y + ty);
+            x2 = Math.min(x2, clip.x + tx + clip.width);
+            y2 = Math.min(y2, clip.y + ty + clip.height);
+        }
+        clipX1 = Math.max(x1, 0);
+        clipY1 = Math.max(y1, 0);
+        clipX2 = Math.min(x2, pixelsWidth);
+        clipY2 = Math.min(y2, pixelsHeight);
+        return (clipX1 < clipX2) && (clipY1 < clipY2);
+    }
+
+    private void rasterFill(int x, int y, int width, int height) {
+        if (rasterClip(x, y, width, height)) {
+            J2SERaster.fillRect(pixels, pixelsWidth, clipX1, clipY1, clipX2 - clipX1, clipY2 - clipY1, pixelColor);
+        }
+    }
+
+    private void rasterRegion(int[] srcPixels, int srcScan, boolean srcAlpha, int x_src, int y_src, int width,
+            int height, int transform, int x_dst, int y_dst, int dW, int dH) {
+        if (!rasterClip(x_dst, y_dst, dW, dH)) {
+            return;
+        }
+        int left = clipX1 - (x_dst + originX + getTranslateX());
+        int top = clipY1 - (y_dst + originY + getTranslateY());
+        J2SERaster.drawRegion(srcPixels, srcScan, srcAlpha, x_src, y_src, width, height, transform, left, top, clipX2
+                - clipX1, clipY2 - clipY1, pixels, pixelsWidth, clipX1, clipY1);
+    }
+
 }
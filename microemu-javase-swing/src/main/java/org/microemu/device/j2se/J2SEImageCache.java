@@ -0,0 +1,127 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.j2se;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * JVM wide cache of images decoded by Image.createImage(String).
+ *
+ * Immutable images are shared by all MIDlets and emulator instances running the same jar. Entries are keyed by jar
+ * content hash, resource name and display color mode. Total size of decoded pixels is bounded, least recently used
+ * images are evicted first.
+ */
+public class J2SEImageCache {
+
+	public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+	private static long maxSize = DEFAULT_MAX_SIZE;
+
+	private static long size = 0;
+
+	private static int hitCount;
+
+	private static int missCount;
+
+	private static final LinkedHashMap /* <String, J2SEImmutableImage> */entries = new LinkedHashMap(64, 0.75f, true);
+
+	public static String getKey(String jarHash, String resourceName, String colorMode) {
+		return jarHash + '|' + colorMode + '|' + resourceName;
+	}
+
+	/**
+	 * @return cached image or <code>null</code>
+	 */
+	public static synchronized J2SEImmutableImage get(String key) {
+		J2SEImmutableImage image = (J2SEImmutableImage) entries.get(key);
+		if (image != null) {
+			hitCount++;
+		} else {
+			missCount++;
+		}
+		return image;
+	}
+
+	public static synchronized void put(String key, J2SEImmutableImage image) {
+		long imageSize = sizeOf(image);
+		if (imageSize > maxSize) {
+			return;
+		}
+		J2SEImmutableImage prev = (J2SEImmutableImage) entries.put(key, image);
+		if (prev != null) {
+			size -= sizeOf(prev);
+		}
+		size += imageSize;
+		trimToSize(maxSize);
+	}
+
+	public static synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum size of decoded pixels in bytes, 0 disables the cache
+	 */
+	public static synchronized void setMaxSize(long maxSize) {
+		J2SEImageCache.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public static synchronized long getSize() {
+		return size;
+	}
+
+	public static synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public static synchronized int getMissCount() {
+		return missCount;
+	}
+
+	public static synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public static synchronized String getStatistics() {
+		return "J2SEImageCache[images=" + entries.size() + ", size=" + size + ", hits=" + hitCount + ", misses="
+				+ missCount + "]";
+	}
+
+	private static long sizeOf(J2SEImmutableImage image) {
+		return (long) image.getWidth() * image.getHeight() * 4;
+	}
+
+	private static void trimToSize(long limit) {
+		for (Iterator i = entries.values().iterator(); (size > limit) && i.hasNext();) {
+			size -= sizeOf((J2SEImmutableImage) i.next());
+			i.remove();
+		}
+	}
+
+}
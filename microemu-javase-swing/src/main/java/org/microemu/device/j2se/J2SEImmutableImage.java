@@ -29,27 +29,104 @@ package org.microemu.device.j2se;
 
 import java.awt.Image;
 import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.awt.image.PixelGrabber;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import org.microemu.log.Logger;
 
 public class J2SEImmutableImage extends javax.microedition.lcdui.Image {
+
+    /**
+     * Maximum size in bytes of transformed regions cached for one image, 0 disables the cache
+     */
+    public static int regionCacheMaxSize = 1024 * 1024;
+
     private Image img;
 
     private int width;
 
     private int height;
 
+    // Transformed regions used by drawRegion and Image.createImage(Image, ..., transform), least recently used first
+    private LinkedHashMap /* <RegionKey, BufferedImage> */regionCache;
+
+    private int regionCacheSize;
+
+    private static class RegionKey {
+
+        final int x, y, width, height, transform;
+
+        RegionKey(int x, int y, int width, int height, int transform) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.transform = transform;
+        }
+
+        public int hashCode() {
+            return (((x * 31 + y) * 31 + width) * 31 + height) * 8 + transform;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RegionKey)) {
+                return false;
+            }
+            RegionKey k = (RegionKey) obj;
+            return (x == k.x) && (y == k.y) && (width == k.width) && (height == k.height) && (transform == k.transform);
+        }
+
+    }
+
     public J2SEImmutableImage(Image image) {
         this.img = image;
         this.width = -1;
         this.height = -1;
+        normalize();
     }
 
     public J2SEImmutableImage(J2SEMutableImage image) {
+        int[] pixels = J2SERaster.getPixels(image.getImage());
+        if (pixels != null) {
+            BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            System.arraycopy(pixels, 0, J2SERaster.getPixels(copy), 0, pixels.length);
+            this.img = copy;
+            this.width = copy.getWidth();
+            this.height = copy.getHeight();
+            return;
+        }
         img = Toolkit.getDefaultToolkit().createImage(image.getImage().getSource());
         this.width = -1;
         this.height = -1;
+        normalize();
+    }
+
+    /**
+     * Convert loaded image to TYPE_INT_ARGB BufferedImage, pixels are read directly later.
+     */
+    private void normalize() {
+        if (J2SERaster.getPixels(img) != null) {
+            this.width = img.getWidth(null);
+            this.height = img.getHeight(null);
+            return;
+        }
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        BufferedImage argb = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        PixelGrabber grabber = new PixelGrabber(img, 0, 0, w, h, J2SERaster.getPixels(argb), 0, w);
+        try {
+            if (grabber.grabPixels() && ((grabber.getStatus() & ImageObserver.ABORT) == 0)) {
+                this.img = argb;
+            }
+        } catch (InterruptedException e) {
+            Logger.error(e);
+        }
     }
 
     public int getHeight() {
@@ -92,6 +169,52 @@ public class J2SEImmutableImage extends javax.microedition.lcdui.Image {
         return img;
     }
 
+    /**
+     * @return <code>true</code> if transformed region of this size is kept by {@link #getTransformedRegion}
+     */
+    public static boolean isRegionCacheable(int width, int height) {
+        return (long) width * height * 4 <= regionCacheMaxSize;
+    }
+
+    /**
+     * Region of this image with MIDP transform applied. Result is cached, it must not be modified.
+     * 
+     * @return TYPE_INT_ARGB or TYPE_INT_RGB image
+     */
+    public synchronized BufferedImage getTransformedRegion(int x, int y, int width, int height, int transform) {
+        RegionKey key = new RegionKey(x, y, width, height, transform);
+        BufferedImage region = null;
+        if (regionCache != null) {
+            region = (BufferedImage) regionCache.get(key);
+            if (region != null) {
+                return region;
+            }
+        }
+        int[] pixels = J2SERaster.getPixels(img);
+        if (pixels != null) {
+            region = J2SERaster.createRegion(pixels, getWidth(), J2SERaster.hasAlpha(img), x, y, width, height,
+                    transform);
+        } else {
+            int[] rgb = new int[width * height];
+            getRGB(rgb, 0, width, x, y, width, height);
+            region = J2SERaster.createRegion(rgb, width, true, 0, 0, width, height, transform);
+        }
+        int size = width * height * 4;
+        if (isRegionCacheable(width, height)) {
+            if (regionCache == null) {
+                regionCache = new LinkedHashMap(16, 0.75f, true);
+            }
+            regionCache.put(key, region);
+            regionCacheSize += size;
+            for (Iterator i = regionCache.values().iterator(); (regionCacheSize > regionCacheMaxSize) && i.hasNext();) {
+                BufferedImage evicted = (BufferedImage) i.next();
+                regionCacheSize -= evicted.getWidth() * evicted.getHeight() * 4;
+                i.remove();
+            }
+        }
+        return region;
+    }
+
     public int getWidth() {
         if (width == -1) {
             ImageObserver observer = new ImageObserver() {
@@ -148,6 +271,12 @@ public class J2SEImmutableImage extends javax.microedition.lcdui.Image {
                 throw new ArrayIndexOutOfBoundsException();
         }
 
+        int[] pixels = J2SERaster.getPixels(img);
+        if (pixels != null) {
+            J2SERaster.getRGB(pixels, getWidth(), J2SERaster.hasAlpha(img), argb, offset, scanlength, x, y, width, height);
+            return;
+        }
+
         try {
             (new java.awt.image.PixelGrabber(img, x, y, width, height, argb, offset, scanlength)).grabPixels();
         } catch (InterruptedException e) {
@@ -30,14 +30,13 @@ import java.awt.event.KeyEvent;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
 
 import javax.microedition.lcdui.Command;
 import javax.microedition.lcdui.TextField;
 
 import org.microemu.DisplayAccess;
+import org.microemu.EmulatorClock;
 import org.microemu.MIDletAccess;
 import org.microemu.MIDletBridge;
 import org.microemu.device.DeviceFactory;
@@ -48,17 +47,14 @@ import org.microemu.device.impl.ButtonName;
 import org.microemu.device.impl.InputMethodImpl;
 import org.microemu.device.impl.SoftButton;
 import org.microemu.device.impl.ui.CommandManager;
-import org.microemu.util.ThreadUtils;
 
 public class J2SEInputMethod extends InputMethodImpl {
 
 	private boolean eventAlreadyConsumed;
 
-	private Timer keyReleasedDelayTimer;
-
 	private List repeatModeKeyCodes = new Vector();
 
-	private class KeyReleasedDelayTask extends TimerTask {
+	private class KeyReleasedDelayTask implements Runnable {
 
 		private int repeatModeKeyCode;
 
@@ -88,10 +84,6 @@ public class J2SEInputMethod extends InputMethodImpl {
 
 	public J2SEInputMethod() {
 		super();
-
-		// TODO When InputMethod will be removed from EmulatorContext add:
-		// if (DeviceFactory.getDevice().hasRepeatEvents()) {
-		keyReleasedDelayTimer = ThreadUtils.createTimer("InputKeyReleasedDelayTimer");
 	}
 
 	/**
@@ -305,8 +297,7 @@ public class J2SEInputMethod extends InputMethodImpl {
 					lastButton = null;
 					lastButtonCharIndex = -1;
 				}
-				resetKey = false;
-				notify();
+				restartCaretTimer();
 			}
 			if (!validate(editText.toString(), inputMethodListener.getConstraints())) {
 				return false;
@@ -392,7 +383,7 @@ public class J2SEInputMethod extends InputMethodImpl {
 		}
 		if (DeviceFactory.getDevice().hasRepeatEvents()) {
 			repeatModeKeyCodes.remove(new Integer(keyCode));
-			keyReleasedDelayTimer.schedule(new KeyReleasedDelayTask(keyCode), 50);
+			EmulatorClock.getClock().schedule(new KeyReleasedDelayTask(keyCode), 50);
 		} else {
 			MIDletAccess ma = MIDletBridge.getMIDletAccess();
 			if (ma == null) {
@@ -89,6 +89,16 @@ public class J2SEMutableImage extends MutableImage
 
 	public int[] getData()
 	{
+		int[] imgPixels = J2SERaster.getPixels(img);
+		if (imgPixels != null) {
+			if ((pixels == null) || (pixels.length != imgPixels.length)) {
+				pixels = new int[imgPixels.length];
+			}
+			J2SERaster.getRGB(imgPixels, getWidth(), J2SERaster.hasAlpha(img), pixels, 0, getWidth(), 0, 0, getWidth(),
+					getHeight());
+			return pixels;
+		}
+
 		if (grabber == null) {
 			pixels = new int[getWidth() * getHeight()];
 			grabber = new PixelGrabber(img, 0, 0, getWidth(), getHeight(), pixels, 0, getWidth());
@@ -135,6 +145,13 @@ public class J2SEMutableImage extends MutableImage
                     throw new ArrayIndexOutOfBoundsException();
             }
 
+            int[] imgPixels = J2SERaster.getPixels(img);
+            if (imgPixels != null) {
+                J2SERaster.getRGB(imgPixels, getWidth(), J2SERaster.hasAlpha(img), argb, offset, scanlength, x, y,
+                        width, height);
+                return;
+            }
+
             try {
                 (new PixelGrabber(img, x, y, width, height, argb, offset, scanlength)).grabPixels();
             } catch (InterruptedException e) {
@@ -0,0 +1,223 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.j2se;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import javax.microedition.lcdui.game.Sprite;
+
+/**
+ * Software rasterizer working directly on <code>int[]</code> pixels of TYPE_INT_RGB and TYPE_INT_ARGB images.
+ *
+ * All coordinates passed to drawing methods are already translated and clipped by the caller.
+ */
+public final class J2SERaster {
+
+	private J2SERaster() {
+	}
+
+	/**
+	 * @return pixels of the image or <code>null</code> if image layout is not plain <code>int[]</code> with scanline
+	 *         equal to image width
+	 */
+	public static int[] getPixels(java.awt.Image img) {
+		if (!(img instanceof BufferedImage)) {
+			return null;
+		}
+		BufferedImage bi = (BufferedImage) img;
+		int type = bi.getType();
+		if ((type != BufferedImage.TYPE_INT_RGB) && (type != BufferedImage.TYPE_INT_ARGB)) {
+			return null;
+		}
+		WritableRaster raster = bi.getRaster();
+		if ((raster.getSampleModelTranslateX() != 0) || (raster.getSampleModelTranslateY() != 0)) {
+			return null;
+		}
+		SampleModel sm = raster.getSampleModel();
+		if (!(sm instanceof SinglePixelPackedSampleModel)
+				|| (((SinglePixelPackedSampleModel) sm).getScanlineStride() != bi.getWidth())) {
+			return null;
+		}
+		DataBuffer db = raster.getDataBuffer();
+		if (!(db instanceof DataBufferInt) || (db.getNumBanks() != 1) || (db.getOffset() != 0)) {
+			return null;
+		}
+		return ((DataBufferInt) db).getData();
+	}
+
+	/**
+	 * @return <code>true</code> when pixels of the image have alpha channel
+	 */
+	public static boolean hasAlpha(java.awt.Image img) {
+		return ((BufferedImage) img).getType() == BufferedImage.TYPE_INT_ARGB;
+	}
+
+	public static void fillRect(int[] dst, int dstScan, int x, int y, int width, int height, int color) {
+		int index = y * dstScan + x;
+		for (int row = 0; row < height; row++) {
+			Arrays.fill(dst, index, index + width, color);
+			index += dstScan;
+		}
+	}
+
+	/*
+	 * Source pixel walk for each MIDP transform: destination pixel (dx, dy) reads source pixel start + dx * stepX + dy
+	 * * stepY. Stored as { start x (in width - 1 units), start y (in height - 1 units), stepX.x, stepX.y, stepY.x,
+	 * stepY.y }
+	 */
+	private static final int[][] TRANSFORM_STEPS = new int[8][];
+
+	static {
+		TRANSFORM_STEPS[Sprite.TRANS_NONE] = new int[] { 0, 0, 1, 0, 0, 1 };
+		TRANSFORM_STEPS[Sprite.TRANS_ROT90] = new int[] { 0, 1, 0, -1, 1, 0 };
+		TRANSFORM_STEPS[Sprite.TRANS_ROT180] = new int[] { 1, 1, -1, 0, 0, -1 };
+		TRANSFORM_STEPS[Sprite.TRANS_ROT270] = new int[] { 1, 0, 0, 1, -1, 0 };
+		TRANSFORM_STEPS[Sprite.TRANS_MIRROR] = new int[] { 1, 0, -1, 0, 0, 1 };
+		TRANSFORM_STEPS[Sprite.TRANS_MIRROR_ROT90] = new int[] { 1, 1, 0, -1, -1, 0 };
+		TRANSFORM_STEPS[Sprite.TRANS_MIRROR_ROT180] = new int[] { 0, 1, 1, 0, 0, -1 };
+		TRANSFORM_STEPS[Sprite.TRANS_MIRROR_ROT270] = new int[] { 0, 0, 0, 1, 1, 0 };
+	}
+
+	/**
+	 * Copy transformed source region to destination. (srcX, srcY, srcWidth, srcHeight) is source region before
+	 * transformation, (clipX, clipY, clipWidth, clipHeight) is the visible part of transformed region relative to its
+	 * top left corner, it is drawn at (dstX, dstY).
+	 */
+	public static void drawRegion(int[] src, int srcScan, boolean srcAlpha, int srcX, int srcY, int srcWidth,
+			int srcHeight, int transform, int clipX, int clipY, int clipWidth, int clipHeight, int[] dst,
+			int dstScan, int dstX, int dstY) {
+		int[] steps = TRANSFORM_STEPS[transform];
+		int stepX = steps[2] + steps[3] * srcScan;
+		int stepY = steps[4] + steps[5] * srcScan;
+		int srcIndex = (srcY + steps[1] * (srcHeight - 1)) * srcScan + srcX + steps[0] * (srcWidth - 1) + clipX
+				* stepX + clipY * stepY;
+		int dstIndex = dstY * dstScan + dstX;
+		for (int row = 0; row < clipHeight; row++) {
+			if ((stepX == 1) && (!srcAlpha)) {
+				System.arraycopy(src, srcIndex, dst, dstIndex, clipWidth);
+			} else {
+				copyRow(src, srcIndex, stepX, srcAlpha, dst, dstIndex, clipWidth);
+			}
+			srcIndex += stepY;
+			dstIndex += dstScan;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> when transform swaps width and height of region
+	 */
+	public static boolean isAxisSwapped(int transform) {
+		return (TRANSFORM_STEPS[transform][2] == 0);
+	}
+
+	/**
+	 * Create new image with transformed copy of source region. Result is TYPE_INT_ARGB if source has alpha channel,
+	 * TYPE_INT_RGB otherwise.
+	 */
+	public static BufferedImage createRegion(int[] src, int srcScan, boolean srcAlpha, int srcX, int srcY,
+			int srcWidth, int srcHeight, int transform) {
+		int width = srcWidth;
+		int height = srcHeight;
+		if (isAxisSwapped(transform)) {
+			width = srcHeight;
+			height = srcWidth;
+		}
+		BufferedImage region = new BufferedImage(width, height, srcAlpha ? BufferedImage.TYPE_INT_ARGB
+				: BufferedImage.TYPE_INT_RGB);
+		// Raw copy, alpha is preserved
+		drawRegion(src, srcScan, false, srcX, srcY, srcWidth, srcHeight, transform, 0, 0, width, height,
+				getPixels(region), width, 0, 0);
+		return region;
+	}
+
+	/**
+	 * Copy pixels to ARGB array, pixels of images without alpha channel are returned opaque.
+	 */
+	public static void getRGB(int[] src, int srcScan, boolean srcAlpha, int[] argb, int offset, int scanlength, int x,
+			int y, int width, int height) {
+		int srcIndex = y * srcScan + x;
+		for (int row = 0; row < height; row++) {
+			if (srcAlpha) {
+				System.arraycopy(src, srcIndex, argb, offset, width);
+			} else {
+				for (int i = 0; i < width; i++) {
+					argb[offset + i] = src[srcIndex + i] | 0xff000000;
+				}
+			}
+			srcIndex += srcScan;
+			offset += scanlength;
+		}
+	}
+
+	public static void drawRGB(int[] rgb, int offset, int scanlength, boolean processAlpha, int[] dst, int dstScan,
+			int dstX, int dstY, int width, int height) {
+		int dstIndex = dstY * dstScan + dstX;
+		for (int row = 0; row < height; row++) {
+			if (processAlpha) {
+				copyRow(rgb, offset, 1, true, dst, dstIndex, width);
+			} else {
+				for (int i = 0; i < width; i++) {
+					dst[dstIndex + i] = rgb[offset + i] | 0xff000000;
+				}
+			}
+			offset += scanlength;
+			dstIndex += dstScan;
+		}
+	}
+
+	private static void copyRow(int[] src, int srcIndex, int step, boolean srcAlpha, int[] dst, int dstIndex,
+			int width) {
+		int dstEnd = dstIndex + width;
+		if (!srcAlpha) {
+			for (; dstIndex < dstEnd; dstIndex++, srcIndex += step) {
+				dst[dstIndex] = src[srcIndex];
+			}
+			return;
+		}
+		for (; dstIndex < dstEnd; dstIndex++, srcIndex += step) {
+			int s = src[srcIndex];
+			int a = s >>> 24;
+			if (a == 0xff) {
+				dst[dstIndex] = s;
+			} else if (a != 0) {
+				dst[dstIndex] = blend(s, dst[dstIndex], a);
+			}
+		}
+	}
+
+	private static int blend(int s, int d, int a) {
+		int na = 0xff - a;
+		int rb = (((s & 0xff00ff) * a + (d & 0xff00ff) * na) >>> 8) & 0xff00ff;
+		int g = (((s & 0xff00) * a + (d & 0xff00) * na) >>> 8) & 0xff00;
+		return 0xff000000 | rb | g;
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.j2se;
+
+import java.awt.Color;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Compares allocations and time of Graphics.setColor color lookup: boxed HashMap keys used before and
+ * J2SEColorCache.
+ *
+ * Usage: java -cp microemulator.jar:target/test-classes org.microemu.device.j2se.ColorCacheBenchmark [calls]
+ */
+public class ColorCacheBenchmark {
+
+	private static final int PALETTE_SIZE = 512;
+
+	private static int sink;
+
+	public static void main(String[] args) {
+		int calls = 10000000;
+		if (args.length > 0) {
+			calls = Integer.parseInt(args[0]);
+		}
+		int[] palette = new int[PALETTE_SIZE];
+		for (int i = 0; i < palette.length; i++) {
+			// Text colors and particle gradient
+			palette[i] = (i < 16) ? (i * 0x111111) : ((i * 0x010203) & 0xFFFFFF);
+		}
+
+		// Warm up both implementations
+		runHashMap(palette, calls / 10);
+		runColorCache(palette, calls / 10);
+
+		report("HashMap<Integer, Color>", palette, calls, false);
+		report("J2SEColorCache", palette, calls, true);
+	}
+
+	private static void report(String name, int[] palette, int calls, boolean colorCache) {
+		System.gc();
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		if (colorCache) {
+			runColorCache(palette, calls);
+		} else {
+			runHashMap(palette, calls);
+		}
+		long time = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+		System.out.println(name + ": " + calls + " setColor calls, " + (time / 1000000) + " ms, "
+				+ ((bytes < 0) ? "allocations not measured" : (bytes + " bytes allocated, "
+						+ ((double) bytes / calls) + " bytes/call")));
+	}
+
+	private static void runHashMap(int[] palette, int calls) {
+		HashMap colorCache = new HashMap();
+		for (int i = 0; i < calls; i++) {
+			int rgb = palette[i & (PALETTE_SIZE - 1)];
+			Color awtColor = (Color) colorCache.get(new Integer(rgb));
+			if (awtColor == null) {
+				awtColor = new Color(rgb);
+				colorCache.put(new Integer(rgb), awtColor);
+			}
+			sink += awtColor.getRGB();
+		}
+	}
+
+	private static void runColorCache(int[] palette, int calls) {
+		J2SEColorCache colorCache = J2SEColorCache.getInstance(ColorCacheBenchmark.class.getName());
+		for (int i = 0; i < calls; i++) {
+			int rgb = palette[i & (PALETTE_SIZE - 1)];
+			Color awtColor = colorCache.get(rgb);
+			if (awtColor == null) {
+				awtColor = new Color(rgb);
+				colorCache.put(rgb, awtColor);
+			}
+			sink += awtColor.getRGB();
+		}
+	}
+
+	/**
+	 * @return bytes allocated by current thread or -1 if JVM does not provide the counter
+	 */
+	private static long allocatedBytes() {
+		try {
+			Object bean = ManagementFactory.getThreadMXBean();
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+					new Class[] { long.class });
+			Long bytes = (Long) method.invoke(bean, new Object[] { new Long(Thread.currentThread().getId()) });
+			return bytes.longValue();
+		} catch (Throwable e) {
+			return -1;
+		}
+	}
+
+}
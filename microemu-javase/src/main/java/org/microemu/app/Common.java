@@ -52,7 +52,10 @@ import java.util.zip.ZipException;
 import javax.microedition.midlet.MIDlet;
 import javax.microedition.midlet.MIDletStateChangeException;
 
+import org.microemu.EmulatorClock;
 import org.microemu.EmulatorContext;
+import org.microemu.EmulatorInstance;
+import org.microemu.EmulatorScheduler;
 import org.microemu.Injected;
 import org.microemu.MIDletAccess;
 import org.microemu.MIDletBridge;
@@ -61,8 +64,10 @@ import org.microemu.MIDletEntry;
 import org.microemu.MicroEmulator;
 import org.microemu.RecordStoreManager;
 import org.microemu.app.classloader.ExtensionsClassLoader;
+import org.microemu.app.classloader.InstrumentedClassCache;
 import org.microemu.app.classloader.MIDletClassLoader;
 import org.microemu.app.classloader.MIDletClassLoaderConfig;
+import org.microemu.app.classloader.SharedClassCache;
 import org.microemu.app.launcher.Launcher;
 import org.microemu.app.ui.Message;
 import org.microemu.app.ui.ResponseInterfaceListener;
@@ -76,11 +81,14 @@ import org.microemu.app.util.MIDletThread;
 import org.microemu.app.util.MIDletTimer;
 import org.microemu.app.util.MIDletTimerTask;
 import org.microemu.app.util.MidletURLReference;
+import org.microemu.app.util.SimulationDriver;
 import org.microemu.device.Device;
 import org.microemu.device.DeviceFactory;
 import org.microemu.device.impl.DeviceDisplayImpl;
 import org.microemu.device.impl.DeviceImpl;
 import org.microemu.device.impl.Rectangle;
+import org.microemu.device.ui.EventDispatcher;
+import org.microemu.device.ui.EventDispatcherStatistics;
 import org.microemu.log.Logger;
 import org.microemu.log.StdOutAppender;
 import org.microemu.microedition.ImplFactory;
@@ -97,11 +105,9 @@ public class Common implements MicroEmulator, CommonInterface {
 
     protected JadProperties jad = new JadProperties();
 
-    private static Common instance;
+    private Launcher launcher;
 
-    private static Launcher launcher;
-
-    private static StatusBarListener statusBarListener = null;
+    private StatusBarListener statusBarListener = null;
 
     private JadProperties manifest = new JadProperties();
 
@@ -115,6 +121,13 @@ public class Common implements MicroEmulator, CommonInterface {
 
     private MIDletClassLoaderConfig mIDletClassLoaderConfig;
 
+    // Class loader of the running suite, closed when the next suite is loaded
+    private MIDletClassLoader currentMIDletClassLoader;
+
+    private InstrumentedClassCache instrumentedClassCache;
+
+    private SimulationDriver simulationDriver;
+
     private boolean useSystemClassLoader = false;
 
     private boolean autoTests = false;
@@ -129,8 +142,11 @@ public class Common implements MicroEmulator, CommonInterface {
 
     private boolean exitOnMIDletDestroy = false;
 
+    /**
+     * Creates emulator bound to current {@link EmulatorInstance}. To run several emulators in one JVM create each one
+     * from a thread bound to its own instance, see {@link EmulatorInstance#setThreadInstance(EmulatorInstance)}.
+     */
     public Common(EmulatorContext context) {
-        instance = this;
         this.emulatorContext = context;
 
         /*
@@ -143,6 +159,12 @@ public class Common implements MicroEmulator, CommonInterface {
         ImplFactory.registerGCF(ImplFactory.DEFAULT, new ConnectorImpl());
 
         MIDletBridge.setMicroEmulator(this);
+
+        EmulatorScheduler.exceptionHandler = new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                Logger.error("EmulatorScheduler task", e);
+            }
+        };
     }
 
     public RecordStoreManager getRecordStoreManager() {
@@ -557,6 +579,7 @@ public class Common implements MicroEmulator, CommonInterface {
         dispose();
         // MIDletBridge.destroyMIDletContext(MIDletBridge.getMIDletContext());
         MIDletBridge.clear();
+        replaceMIDletClassLoader(midletClassLoader);
 
         setResponseInterface(false);
         try {
@@ -594,6 +617,9 @@ public class Common implements MicroEmulator, CommonInterface {
                 }
             }
             midletClassLoader.addURL(url);
+            if (midletClassLoader.isPreInstrument()) {
+                midletClassLoader.preInstrument(url);
+            }
 
             Launcher.removeMIDletEntries();
 
@@ -628,6 +654,12 @@ public class Common implements MicroEmulator, CommonInterface {
                 Class midletClass = midletClassLoader.loadClass(jadEntry.getClassName());
                 Launcher.addMIDletEntry(new MIDletEntry(jadEntry.getName(), midletClass));
             }
+            if (midletClassLoader.getInstrumentedClassCache() != null) {
+                Logger.debug("class cache", midletClassLoader.getInstrumentedClassCache());
+            }
+            if (MIDletClassLoader.shareInstrumentedClasses) {
+                Logger.debug("shared class cache", SharedClassCache.getStatistics());
+            }
             startLauncher(MIDletBridge.getMIDletContext());
             setStatusBar("");
         } finally {
@@ -645,12 +677,25 @@ public class Common implements MicroEmulator, CommonInterface {
     }
 
     private static Common getInstance() {
-        return instance;
+        return (Common) MIDletBridge.getMicroEmulator();
     }
 
     public static void setStatusBar(String text) {
-        if (statusBarListener != null) {
-            statusBarListener.statusBarChanged(text);
+        setStatusBar(EmulatorInstance.getInstance(), text);
+    }
+
+    /**
+     * Status bar of emulator of given instance, for threads not bound to it like the AWT event thread. Does nothing
+     * when the instance has no emulator.
+     */
+    public static void setStatusBar(EmulatorInstance instance, String text) {
+        MicroEmulator emulator = instance.getMicroEmulator();
+        if (!(emulator instanceof Common)) {
+            return;
+        }
+        StatusBarListener listener = ((Common) emulator).statusBarListener;
+        if (listener != null) {
+            listener.statusBarChanged(text);
         }
     }
 
@@ -843,6 +888,55 @@ public class Common implements MicroEmulator, CommonInterface {
                     MIDletClassLoader.traceSystemClassLoading = true;
                 } else if (arg.equals("--enhanceCatchBlock")) {
                     MIDletClassLoader.enhanceCatchBlock = true;
+                } else if (arg.equals("--preInstrument")) {
+                    clConfig.setPreInstrument(true);
+                } else if (arg.equals("--noClassCache")) {
+                    MIDletClassLoader.cacheInstrumentedClasses = false;
+                } else if (arg.equals("--sharedClassCacheSize")) {
+                    long kilobytes = Long.parseLong((String) argsIterator.next());
+                    argsIterator.remove();
+                    MIDletClassLoader.shareInstrumentedClasses = (kilobytes > 0);
+                    SharedClassCache.setMaxSize(kilobytes * 1024);
+                } else if (arg.equals("--maxClassSize")) {
+                    int kilobytes = Integer.parseInt((String) argsIterator.next());
+                    argsIterator.remove();
+                    MIDletClassLoader.maxClassSize = (kilobytes < 0) ? -1 : kilobytes * 1024;
+                } else if (arg.equals("--renderPolicy")) {
+                    String policy = (String) argsIterator.next();
+                    argsIterator.remove();
+                    if (policy.equals("always")) {
+                        EventDispatcher.defaultRenderPolicy = EventDispatcher.RENDER_ALWAYS;
+                    } else if (policy.equals("never")) {
+                        EventDispatcher.defaultRenderPolicy = EventDispatcher.RENDER_NEVER;
+                    } else if (policy.equals("demand")) {
+                        EventDispatcher.defaultRenderPolicy = EventDispatcher.RENDER_ON_DEMAND;
+                    } else {
+                        EventDispatcher.defaultRenderPolicy = EventDispatcher.RENDER_EVERY_NTH;
+                        EventDispatcher.defaultRenderInterval = Math.max(1, Integer.parseInt(policy));
+                    }
+                } else if (arg.equals("--eventStatistics")) {
+                    int seconds = Integer.parseInt((String) argsIterator.next());
+                    argsIterator.remove();
+                    EventDispatcher.collectStatistics = true;
+                    if (seconds > 0) {
+                        scheduleEventStatisticsLog(seconds);
+                    }
+                } else if (arg.equals("--virtualThreads")) {
+                    MIDletThread.virtualThreads = true;
+                } else if (arg.equals("--timeSpeed")) {
+                    double speed = Double.parseDouble((String) argsIterator.next());
+                    argsIterator.remove();
+                    EmulatorInstance.getDefaultInstance().getClock().setSpeed(speed);
+                    EmulatorClock.defaultSpeed = speed;
+                } else if (arg.equals("--simulation")) {
+                    SimulationDriver.defaultTick = Math.max(1, Long.parseLong((String) argsIterator.next()));
+                    argsIterator.remove();
+                } else if (arg.equals("--simulationStart")) {
+                    SimulationDriver.defaultStartTime = Long.parseLong((String) argsIterator.next());
+                    argsIterator.remove();
+                } else if (arg.equals("--schedulerThreads")) {
+                    EmulatorScheduler.threads = Math.max(1, Integer.parseInt((String) argsIterator.next()));
+                    argsIterator.remove();
                 } else if (arg.equals("--quiet")) {
                     StdOutAppender.enabled = false;
                 } else if (arg.equals("--headless")) {
@@ -933,10 +1027,28 @@ public class Common implements MicroEmulator, CommonInterface {
     }
 
     private static ExtensionsClassLoader getExtensionsClassLoader() {
-        if (instance.extensionsClassLoader == null) {
-            instance.extensionsClassLoader = new ExtensionsClassLoader(new URL[] {}, instance.getClass().getClassLoader());
+        Common instance = getInstance();
+        synchronized (instance) {
+            if (instance.extensionsClassLoader == null) {
+                instance.extensionsClassLoader = new ExtensionsClassLoader(new URL[] {}, instance.getClass().getClassLoader());
+            }
+            return instance.extensionsClassLoader;
+        }
+    }
+
+    /**
+     * Close jar files held by the class loader of the previous suite, its MIDlet is destroyed by now
+     */
+    private void replaceMIDletClassLoader(MIDletClassLoader midletClassLoader) {
+        MIDletClassLoader previous = currentMIDletClassLoader;
+        currentMIDletClassLoader = midletClassLoader;
+        if ((previous != null) && (previous != midletClassLoader)) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                Logger.error("Unable to close MIDlet class loader", e);
+            }
         }
-        return instance.extensionsClassLoader;
     }
 
     private MIDletClassLoader createMIDletClassLoader(boolean forJad) {
@@ -948,14 +1060,25 @@ public class Common implements MicroEmulator, CommonInterface {
                 Message.error("Error", "Unable to find MIDlet classes, " + Message.getCauseMessage(e), e);
             }
         }
+        if (MIDletClassLoader.cacheInstrumentedClasses) {
+            mcl.setInstrumentedClassCache(getInstrumentedClassCache());
+        }
         mcl.disableClassPreporcessing(Injected.class);
+        mcl.disableClassPreporcessing(EmulatorClock.class);
         mcl.disableClassPreporcessing(MIDletThread.class);
         mcl.disableClassPreporcessing(MIDletTimer.class);
         mcl.disableClassPreporcessing(MIDletTimerTask.class);
-        MIDletResourceLoader.classLoader = mcl;
+        MIDletResourceLoader.setClassLoader(mcl);
         return mcl;
     }
 
+    public synchronized InstrumentedClassCache getInstrumentedClassCache() {
+        if (instrumentedClassCache == null) {
+            instrumentedClassCache = new InstrumentedClassCache(new File(Config.getConfigPath(), "class-cache"));
+        }
+        return instrumentedClassCache;
+    }
+
     public static ClassLoader createExtensionsClassLoader(final URL[] urls) {
         return new ExtensionsClassLoader(urls, getExtensionsClassLoader());
     }
@@ -991,6 +1114,7 @@ public class Common implements MicroEmulator, CommonInterface {
             useSystemClassLoader = mIDletClassLoaderConfig.isClassLoaderDisabled();
             if (!useSystemClassLoader) {
                 MIDletClassLoader classLoader = createMIDletClassLoader(false);
+                replaceMIDletClassLoader(classLoader);
                 try {
                     classLoader.addClassURL(midletClassOrUrl);
                     midletClass = classLoader.loadClass(midletClassOrUrl);
@@ -1000,7 +1124,7 @@ public class Common implements MicroEmulator, CommonInterface {
                 }
             } else {
                 try {
-                    midletClass = instance.getClass().getClassLoader().loadClass(midletClassOrUrl);
+                    midletClass = getClass().getClassLoader().loadClass(midletClassOrUrl);
                 } catch (ClassNotFoundException e) {
                     Message.error("Error", "Unable to find MIDlet class, " + Message.getCauseMessage(e), e);
                     return;
@@ -1022,6 +1146,8 @@ public class Common implements MicroEmulator, CommonInterface {
                 }
             }
 
+            startSimulation();
+
             boolean started = false;
 
             if (midletClass == null) {
@@ -1035,15 +1161,51 @@ public class Common implements MicroEmulator, CommonInterface {
             if (!started) {
                 startLauncher(MIDletBridge.getMIDletContext());
             }
+            if (simulationDriver != null) {
+                simulationDriver.detach(Thread.currentThread());
+            }
         }
 
     }
 
+    /**
+     * Stop the clock of this instance and start driving it in fixed ticks. Current thread starts the MIDlet, the
+     * driver waits for it until it is detached.
+     */
+    private void startSimulation() {
+        if (SimulationDriver.defaultTick <= 0) {
+            return;
+        }
+        if (simulationDriver != null) {
+            simulationDriver.attach(Thread.currentThread());
+            return;
+        }
+        EmulatorInstance instance = EmulatorInstance.getInstance();
+        long start = SimulationDriver.defaultStartTime;
+        instance.getClock().setManual((start < 0) ? System.currentTimeMillis() : start);
+        simulationDriver = new SimulationDriver(instance, SimulationDriver.defaultTick);
+        simulationDriver.attach(Thread.currentThread());
+        simulationDriver.start();
+    }
+
+    private static EmulatorScheduler.Task eventStatisticsTask;
+
+    private static synchronized void scheduleEventStatisticsLog(int seconds) {
+        if (eventStatisticsTask != null) {
+            eventStatisticsTask.cancel();
+        }
+        eventStatisticsTask = EmulatorScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                Logger.info(EventDispatcherStatistics.getReport());
+            }
+        }, seconds * 1000L, seconds * 1000L);
+    }
+
     public static String usage() {
         return "[(-d | --device) ({device descriptor} | {device class name}) ] \n" + "[--rms (file | memory)] \n" + "[--id EmulatorID ] \n"
                 + "[--impl {JSR implementation class name}]\n" + "[(--classpath|-cp) <JSR CLASSPATH>]\n" + "[(--appclasspath|--appcp) <MIDlet CLASSPATH>]\n"
                 + "[--appclass <library class name>]\n" + "[--appclassloader strict|relaxed|delegating|system] \n" + "[-Xautotest:<JAD file url>\n"
-                + "[--quit]\n" + "[--logCallLocation true|false]\n" + "[--traceClassLoading\n[--traceSystemClassLoading]\n[--enhanceCatchBlock]\n]"
+                + "[--quit]\n" + "[--logCallLocation true|false]\n" + "[--traceClassLoading\n[--traceSystemClassLoading]\n[--enhanceCatchBlock]\n[--preInstrument]\n[--noClassCache]\n[--sharedClassCacheSize {kilobytes}]\n[--maxClassSize {kilobytes}]\n]\n" + "[--renderPolicy always|never|demand|{N}]\n" + "[--eventStatistics {seconds}]\n" + "[--schedulerThreads {N}]\n" + "[--virtualThreads]  Java 21+, before Java 24 wait or sleep in synchronized pins a carrier thread\n" + "[--timeSpeed {factor}]\n" + "[--simulation {tickMillis} [--simulationStart {millis}]]\n"
                 + "[--resizableDevice {width} {height}]\n"
                 + "(({MIDlet class name} [--propertiesjad {jad file location}]) | {jad file location} | {jar file location})";
     }
@@ -41,6 +41,7 @@ import nanoxml.XMLElement;
 import nanoxml.XMLParseException;
 
 import org.microemu.EmulatorContext;
+import org.microemu.EmulatorInstance;
 import org.microemu.app.util.DeviceEntry;
 import org.microemu.app.util.IOUtils;
 import org.microemu.app.util.MIDletSystemProperties;
@@ -53,26 +54,48 @@ import org.microemu.microedition.ImplementationInitialization;
 
 public class Config {
 
-	private static File meHome;
+	private static final String STATE_ATTRIBUTE = Config.class.getName();
 
 	/**
-	 * emulatorID used for multiple instance of MicroEmulator, now redefine home
+	 * Configuration of one EmulatorInstance
 	 */
-	private static String emulatorID;
+	private static class ConfigState {
 
-	private static XMLElement configXml = new XMLElement();
+		File meHome;
 
-	private static DeviceEntry defaultDevice;
+		/**
+		 * emulatorID used for multiple instance of MicroEmulator, now redefine home
+		 */
+		String emulatorID;
 
-	private static DeviceEntry resizableDevice;
+		XMLElement configXml = new XMLElement();
 
-	private static EmulatorContext emulatorContext;
+		DeviceEntry defaultDevice;
 
-	private static MRUList urlsMRU = new MRUList(MidletURLReference.class, "midlet");
+		DeviceEntry resizableDevice;
+
+		EmulatorContext emulatorContext;
+
+		MRUList urlsMRU = new MRUList(MidletURLReference.class, "midlet");
+
+	}
+
+	private static ConfigState state() {
+		EmulatorInstance instance = EmulatorInstance.getInstance();
+		synchronized (instance) {
+			ConfigState state = (ConfigState) instance.getAttribute(STATE_ATTRIBUTE);
+			if (state == null) {
+				state = new ConfigState();
+				instance.setAttribute(STATE_ATTRIBUTE, state);
+			}
+			return state;
+		}
+	}
 
 	private static File initMEHomePath() {
 		try {
 			File meHome = new File( "data");
+			String emulatorID = state().emulatorID;
 			if (emulatorID != null) {
 				return new File(meHome, emulatorID);
 			} else {
@@ -85,8 +108,9 @@ public class Config {
 	}
 
 	public static void loadConfig(DeviceEntry defaultDevice, EmulatorContext emulatorContext) {
-		Config.defaultDevice = defaultDevice;
-		Config.emulatorContext = emulatorContext;
+		ConfigState state = state();
+		state.defaultDevice = defaultDevice;
+		state.emulatorContext = emulatorContext;
 
 		File configFile = new File(getConfigPath(), "config2.xml");
 		try {
@@ -121,11 +145,11 @@ public class Config {
 			createDefaultConfigXml();
 		} finally {
 			// Happens in webstart untrusted environment
-			if (configXml == null) {
+			if (state.configXml == null) {
 				createDefaultConfigXml();
 			}
 		}
-		urlsMRU.read(configXml.getChildOrNew("files").getChildOrNew("recent"));
+		state.urlsMRU.read(state.configXml.getChildOrNew("files").getChildOrNew("recent"));
 		initSystemProperties();
 	}
 
@@ -140,8 +164,9 @@ public class Config {
 				dis.read(b);
 				xml += new String(b);
 			}
-			configXml = new XMLElement();
+			XMLElement configXml = new XMLElement();
 			configXml.parseString(xml);
+			state().configXml = configXml;
 		} catch (XMLParseException e) {
 			Logger.error(e);
 			createDefaultConfigXml();
@@ -151,13 +176,15 @@ public class Config {
 	}
 
 	private static void createDefaultConfigXml() {
-		configXml = new XMLElement();
+		XMLElement configXml = new XMLElement();
 		configXml.setName("config");
+		state().configXml = configXml;
 	}
 
 	public static void saveConfig() {
 
-		urlsMRU.save(configXml.getChildOrNew("files").getChildOrNew("recent"));
+		ConfigState state = state();
+		state.urlsMRU.save(state.configXml.getChildOrNew("files").getChildOrNew("recent"));
 
 		File configFile = new File(getConfigPath(), "config2.xml");
 
@@ -165,7 +192,7 @@ public class Config {
 		FileWriter fw = null;
 		try {
 			fw = new FileWriter(configFile);
-			configXml.write(fw);
+			state.configXml.write(fw);
 			fw.close();
 		} catch (IOException ex) {
 			Logger.error(ex);
@@ -176,7 +203,7 @@ public class Config {
 
 	static Map getExtensions() {
 		Map extensions = new HashMap();
-		XMLElement extensionsXml = configXml.getChild("extensions");
+		XMLElement extensionsXml = state().configXml.getChild("extensions");
 		if (extensionsXml == null) {
 			return extensions;
 		}
@@ -213,7 +240,7 @@ public class Config {
 	private static void initSystemProperties() {
 		Map systemProperties = null;
 
-		for (Enumeration e = configXml.enumerateChildren(); e.hasMoreElements();) {
+		for (Enumeration e = state().configXml.enumerateChildren(); e.hasMoreElements();) {
 			XMLElement tmp = (XMLElement) e.nextElement();
 			if (tmp.getName().equals("system-properties")) {
 				// Permits null values.
@@ -236,7 +263,7 @@ public class Config {
 			// implementation dll or so
 			systemProperties.put("avetana.forceNativeLibrary", Boolean.TRUE.toString());
 
-			XMLElement propertiesXml = configXml.getChildOrNew("system-properties");
+			XMLElement propertiesXml = state().configXml.getChildOrNew("system-properties");
 
 			for (Iterator i = systemProperties.entrySet().iterator(); i.hasNext();) {
 				Map.Entry e = (Map.Entry) i.next();
@@ -252,27 +279,29 @@ public class Config {
 	}
 
 	public static File getConfigPath() {
-		if (meHome == null) {
-			meHome = initMEHomePath();
+		ConfigState state = state();
+		if (state.meHome == null) {
+			state.meHome = initMEHomePath();
 		}
-		return meHome;
+		return state.meHome;
 	}
 
 	public static Vector getDeviceEntries() {
 		Vector result = new Vector();
 
-		if (defaultDevice == null) {
-			defaultDevice = new DeviceEntry("Default device", null, DeviceImpl.DEFAULT_LOCATION, true, false);
+		ConfigState state = state();
+		if (state.defaultDevice == null) {
+			state.defaultDevice = new DeviceEntry("Default device", null, DeviceImpl.DEFAULT_LOCATION, true, false);
 		}
-		defaultDevice.setDefaultDevice(true);
-		result.add(defaultDevice);
+		state.defaultDevice.setDefaultDevice(true);
+		result.add(state.defaultDevice);
 		
-		if (resizableDevice == null) {
-			resizableDevice = new DeviceEntry("Resizable device", null, DeviceImpl.RESIZABLE_LOCATION, false, false);
-			addDeviceEntry(resizableDevice);
+		if (state.resizableDevice == null) {
+			state.resizableDevice = new DeviceEntry("Resizable device", null, DeviceImpl.RESIZABLE_LOCATION, false, false);
+			addDeviceEntry(state.resizableDevice);
 		}
 
-		XMLElement devicesXml = configXml.getChild("devices");
+		XMLElement devicesXml = state.configXml.getChild("devices");
 		if (devicesXml == null) {
 			return result;
 		}
@@ -284,7 +313,7 @@ public class Config {
 				if (tmp_device.getStringAttribute("default") != null
 						&& tmp_device.getStringAttribute("default").equals("true")) {
 					devDefault = true;
-					defaultDevice.setDefaultDevice(false);
+					state.defaultDevice.setDefaultDevice(false);
 				}
 				String devName = tmp_device.getChildString("name", null);
 				String devFile = tmp_device.getChildString("filename", null);
@@ -292,7 +321,7 @@ public class Config {
 				String devDescriptor = tmp_device.getChildString("descriptor", null);
 				;
 				if (devDescriptor == null) {
-					result.add(new DeviceEntry(devName, devFile, devDefault, devClass, emulatorContext));
+					result.add(new DeviceEntry(devName, devFile, devDefault, devClass, state.emulatorContext));
 				} else {
 					result.add(new DeviceEntry(devName, devFile, devDescriptor, devDefault));
 				}
@@ -310,7 +339,7 @@ public class Config {
 			}
 		}
 
-		XMLElement devicesXml = configXml.getChildOrNew("devices");
+		XMLElement devicesXml = state().configXml.getChildOrNew("devices");
 
 		XMLElement deviceXml = devicesXml.addChild("device");
 		if (entry.isDefaultDevice()) {
@@ -324,7 +353,7 @@ public class Config {
 	}
 
 	public static void removeDeviceEntry(DeviceEntry entry) {
-		XMLElement devicesXml = configXml.getChild("devices");
+		XMLElement devicesXml = state().configXml.getChild("devices");
 		if (devicesXml == null) {
 			return;
 		}
@@ -351,7 +380,7 @@ public class Config {
 	}
 
 	public static void changeDeviceEntry(DeviceEntry entry) {
-		XMLElement devicesXml = configXml.getChild("devices");
+		XMLElement devicesXml = state().configXml.getChild("devices");
 		if (devicesXml == null) {
 			return;
 		}
@@ -375,7 +404,7 @@ public class Config {
 	}
 
 	public static Rectangle getDeviceEntryDisplaySize(DeviceEntry entry) {
-		XMLElement devicesXml = configXml.getChild("devices");
+		XMLElement devicesXml = state().configXml.getChild("devices");
 
 		if (devicesXml != null) {
 			for (Enumeration e_device = devicesXml.enumerateChildren(); e_device.hasMoreElements();) {
@@ -405,7 +434,7 @@ public class Config {
 		if (entry == null) {
 			return;
 		}
-		XMLElement devicesXml = configXml.getChild("devices");
+		XMLElement devicesXml = state().configXml.getChild("devices");
 		if (devicesXml == null) {
 			return;
 		}
@@ -433,7 +462,7 @@ public class Config {
 	}
 
 	public static String getRecordStoreManagerClassName() {
-		XMLElement recordStoreManagerXml = configXml.getChild("recordStoreManager");
+		XMLElement recordStoreManagerXml = state().configXml.getChild("recordStoreManager");
 		if (recordStoreManagerXml == null) {
 			return null;
 		}
@@ -442,14 +471,14 @@ public class Config {
 	}
 
 	public static void setRecordStoreManagerClassName(String className) {
-		XMLElement recordStoreManagerXml = configXml.getChildOrNew("recordStoreManager");
+		XMLElement recordStoreManagerXml = state().configXml.getChildOrNew("recordStoreManager");
 		recordStoreManagerXml.setAttribute("class", className);
 
 		saveConfig();
 	}
 
 	public static boolean isLogConsoleLocationEnabled() {
-		XMLElement logConsoleXml = configXml.getChild("logConsole");
+		XMLElement logConsoleXml = state().configXml.getChild("logConsole");
 		if (logConsoleXml == null) {
 			return true;
 		}
@@ -458,7 +487,7 @@ public class Config {
 	}
 
 	public static void setLogConsoleLocationEnabled(boolean state) {
-		XMLElement logConsoleXml = configXml.getChildOrNew("logConsole");
+		XMLElement logConsoleXml = state().configXml.getChildOrNew("logConsole");
 		if (state) {
 			logConsoleXml.setAttribute("locationEnabled", "true");
 		} else {
@@ -469,7 +498,7 @@ public class Config {
 	}
 
 	public static boolean isWindowOnStart(String name) {
-		XMLElement windowsXml = configXml.getChild("windows");
+		XMLElement windowsXml = state().configXml.getChild("windows");
 		if (windowsXml == null) {
 			return false;
 		}
@@ -488,7 +517,7 @@ public class Config {
 	}
 
 	public static Rectangle getWindow(String name, Rectangle defaultWindow) {
-		XMLElement windowsXml = configXml.getChild("windows");
+		XMLElement windowsXml = state().configXml.getChild("windows");
 		if (windowsXml == null) {
 			return defaultWindow;
 		}
@@ -508,7 +537,7 @@ public class Config {
 	}
 
 	public static void setWindow(String name, Rectangle window, boolean onStart) {
-		XMLElement windowsXml = configXml.getChildOrNew("windows");
+		XMLElement windowsXml = state().configXml.getChildOrNew("windows");
 		XMLElement mainXml = windowsXml.getChildOrNew(name);
 		if (onStart) {
 			mainXml.setAttribute("onstart", "true");
@@ -530,7 +559,7 @@ public class Config {
 	public static String getRecentDirectory(String key) {
 		String defaultResult = ".";
 
-		XMLElement filesXml = configXml.getChild("files");
+		XMLElement filesXml = state().configXml.getChild("files");
 		if (filesXml == null) {
 			return defaultResult;
 		}
@@ -539,7 +568,7 @@ public class Config {
 	}
 
 	public static void setRecentDirectory(String key, String recentJadDirectory) {
-		XMLElement filesXml = configXml.getChildOrNew("files");
+		XMLElement filesXml = state().configXml.getChildOrNew("files");
 		XMLElement recentJadDirectoryXml = filesXml.getChildOrNew(key);
 		recentJadDirectoryXml.setContent(recentJadDirectory);
 
@@ -547,15 +576,15 @@ public class Config {
 	}
 
 	public static MRUList getUrlsMRU() {
-		return urlsMRU;
+		return state().urlsMRU;
 	}
 
 	public static String getEmulatorID() {
-		return emulatorID;
+		return state().emulatorID;
 	}
 
 	public static void setEmulatorID(String emulatorID) {
-		Config.emulatorID = emulatorID;
+		state().emulatorID = emulatorID;
 	}
 
 }
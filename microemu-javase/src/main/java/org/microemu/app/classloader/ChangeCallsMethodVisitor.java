@@ -28,6 +28,7 @@ package org.microemu.app.classloader;
 
 import java.util.HashMap;
 
+import org.microemu.EmulatorClock;
 import org.microemu.Injected;
 import org.microemu.app.util.MIDletThread;
 import org.microemu.app.util.MIDletTimer;
@@ -45,6 +46,10 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 
 	private static final String INJECTED_CLASS = codeName(Injected.class);
 	
+	private static final String MIDLET_THREAD_CLASS = codeName(MIDletThread.class);
+	
+	private static final String EMULATOR_CLOCK_CLASS = codeName(EmulatorClock.class);
+	
 	static String NEW_SYSTEM_OUT_CLASS = INJECTED_CLASS;
 	
 	static String NEW_SYSTEM_PROPERTIES_CLASS = INJECTED_CLASS;
@@ -55,6 +60,9 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 	
 	private InstrumentationConfig config;
 	
+	// NEW java/util/Date not yet initialized
+	private int newDates = 0;
+	
 	private static class CatchInformation {
 		
 		Label label; 
@@ -107,6 +115,20 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 				mv.visitMethodInsn(opcode, NEW_SYSTEM_PROPERTIES_CLASS, name, desc);
 				return;
 			}
+			if ((name.equals("currentTimeMillis")) && (owner.equals("java/lang/System"))) {
+				// MIDlet time of EmulatorInstance
+				mv.visitMethodInsn(opcode, EMULATOR_CLOCK_CLASS, name, desc);
+				return;
+			}
+			if ((name.equals("sleep")) && (owner.equals("java/lang/Thread")) && desc.equals("(J)V")) {
+				mv.visitMethodInsn(opcode, EMULATOR_CLOCK_CLASS, name, desc);
+				return;
+			}
+			if ((config.isEnhanceThreadCreation()) && (name.equals("currentThread")) && (owner.equals("java/lang/Thread"))) {
+				// MIDletThread may run in virtual thread
+				mv.visitMethodInsn(opcode, MIDLET_THREAD_CLASS, "getCurrentThread", desc);
+				return;
+			}
 			break;
 		case INVOKEVIRTUAL:
 			if ((name.equals("getResourceAsStream")) && (owner.equals("java/lang/Class"))) {
@@ -119,9 +141,35 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 				// INVOKEVIRTUAL java/lang/Throwable.printStackTrace()V
 				mv.visitMethodInsn(INVOKESTATIC, INJECTED_CLASS, name, "(Ljava/lang/Throwable;)V");
 				return;
+			} else if ((name.equals("wait")) && (desc.equals("(J)V"))) {
+				// Object.wait(long) is final, owner may be any class
+				mv.visitMethodInsn(INVOKESTATIC, EMULATOR_CLOCK_CLASS, "objectWait", "(Ljava/lang/Object;J)V");
+				return;
+			} else if ((config.isEnhanceThreadCreation()) && (owner.equals("java/lang/Thread"))) {
+				// State of MIDletThread running in virtual thread
+				if (name.equals("isAlive") && desc.equals("()Z")) {
+					mv.visitMethodInsn(INVOKESTATIC, MIDLET_THREAD_CLASS, "isThreadAlive", "(Ljava/lang/Thread;)Z");
+					return;
+				} else if (name.equals("join") && desc.equals("()V")) {
+					mv.visitMethodInsn(INVOKESTATIC, MIDLET_THREAD_CLASS, "joinThread", "(Ljava/lang/Thread;)V");
+					return;
+				} else if (name.equals("join") && desc.equals("(J)V")) {
+					mv.visitMethodInsn(INVOKESTATIC, MIDLET_THREAD_CLASS, "joinThread", "(Ljava/lang/Thread;J)V");
+					return;
+				}
 			}
 			break;
 		case INVOKESPECIAL:
+			if ((newDates > 0) && (name.equals("<init>")) && (owner.equals("java/util/Date"))) {
+				// Constructor of Date created by this code, not super() call of Date subclass
+				newDates--;
+				if (desc.equals("()V")) {
+					mv.visitMethodInsn(opcode, owner, name, desc);
+					// Date left on stack by DUP
+					mv.visitMethodInsn(INVOKESTATIC, EMULATOR_CLOCK_CLASS, "setTime", "(Ljava/util/Date;)Ljava/util/Date;");
+					return;
+				}
+			}
 			if  ((config.isEnhanceThreadCreation()) && (name.equals("<init>"))) {
 				if (owner.equals("java/util/Timer")) {
 					owner = codeName(MIDletTimer.class);
@@ -138,6 +186,9 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 	}
 	
     public void visitTypeInsn(final int opcode, String desc) {
+    	if ((opcode == NEW) && ("java/util/Date".equals(desc))) {
+    		newDates++;
+    	}
     	if ((opcode == NEW) && (config.isEnhanceThreadCreation())) {
     		if ("java/util/Timer".equals(desc)) {
     			desc = codeName(MIDletTimer.class);
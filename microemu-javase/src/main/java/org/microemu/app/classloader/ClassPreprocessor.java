@@ -42,15 +42,22 @@ public class ClassPreprocessor {
 
 	public static byte[] instrument(final InputStream classInputStream, InstrumentationConfig config) {
 		try {
-			ClassReader cr = new ClassReader(classInputStream);
-			ClassWriter cw = new ClassWriter(0);
-			ClassVisitor cv = new ChangeCallsClassVisitor(cw, config);
-			cr.accept(cv, 0);
-			return cw.toByteArray();
+			return instrument(new ClassReader(classInputStream), config);
 		} catch (IOException e) {
 			Logger.error("Error loading MIDlet class", e);
 			return null;
 		} 
     }
+
+	public static byte[] instrument(final byte[] classBytes, InstrumentationConfig config) {
+		return instrument(new ClassReader(classBytes), config);
+	}
+
+	private static byte[] instrument(ClassReader cr, InstrumentationConfig config) {
+		ClassWriter cw = new ClassWriter(0);
+		ClassVisitor cv = new ChangeCallsClassVisitor(cw, config);
+		cr.accept(cv, 0);
+		return cw.toByteArray();
+	}
 	
 }
@@ -50,5 +50,12 @@ public class InstrumentationConfig {
 	public void setEnhanceThreadCreation(boolean enhanceThreadCreation) {
 		this.enhanceThreadCreation = enhanceThreadCreation;
 	}
+
+	/**
+	 * @return String identifying instrumentation options, used as part of instrumented classes cache key
+	 */
+	public String getKey() {
+		return "t" + (enhanceThreadCreation ? 1 : 0) + "c" + (enhanceCatchBlock ? 1 : 0);
+	}
 	
 }
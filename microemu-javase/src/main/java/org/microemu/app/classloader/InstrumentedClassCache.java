@@ -0,0 +1,263 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2006-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *  Copyright (C) 2006-2010 Vlad Skarzhevskyy
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+package org.microemu.app.classloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.microemu.app.util.IOUtils;
+import org.microemu.log.Logger;
+
+/**
+ * Persistent cache of instrumented MIDlet classes.
+ *
+ * Instrumented byte code is stored as
+ * <tt>{cacheDir}/{jar SHA-1}/{instrumentation key}/{class resource name}</tt> and served on later launches without
+ * running ASM. Only classes loaded from jar files are cached, jar content hash makes stale entries unreachable.
+ */
+public class InstrumentedClassCache {
+
+	/**
+	 * Increment when ChangeCallsClassVisitor output changes
+	 */
+	public static final int FORMAT_VERSION = 3;
+
+	private static final Map /* <String, JarHash> */jarHashes = new HashMap();
+
+	private final File cacheDir;
+
+	private int hitCount;
+
+	private int missCount;
+
+	private static class JarHash {
+
+		long length;
+
+		long lastModified;
+
+		String hash;
+
+	}
+
+	public InstrumentedClassCache(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	/**
+	 * @return instrumented byte code or <code>null</code> if class is not in cache
+	 */
+	public byte[] get(String jarHash, String className, InstrumentationConfig config) {
+		File file = getCacheFile(jarHash, className, config);
+		byte[] byteCode = null;
+		if (file.isFile()) {
+			try {
+				byteCode = readFile(file);
+			} catch (IOException e) {
+				Logger.debug("Unable to read cached class " + className, e);
+			}
+		}
+		synchronized (this) {
+			if (byteCode != null) {
+				hitCount++;
+			} else {
+				missCount++;
+			}
+		}
+		return byteCode;
+	}
+
+	public void put(String jarHash, String className, InstrumentationConfig config, byte[] byteCode) {
+		File file = getCacheFile(jarHash, className, config);
+		File dir = file.getParentFile();
+		if ((!dir.isDirectory()) && (!dir.mkdirs()) && (!dir.isDirectory())) {
+			return;
+		}
+		// Write to temporary file first, several emulators may share the cache
+		FileOutputStream fos = null;
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("cls", ".tmp", dir);
+			fos = new FileOutputStream(tmp);
+			fos.write(byteCode);
+			fos.close();
+			fos = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Logger.debug("Unable to cache class " + className, e);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		} finally {
+			IOUtils.closeQuietly(fos);
+		}
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	public synchronized void resetCounters() {
+		hitCount = 0;
+		missCount = 0;
+	}
+
+	public String toString() {
+		return "InstrumentedClassCache[" + cacheDir + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+	}
+
+	private File getCacheFile(String jarHash, String className, InstrumentationConfig config) {
+		File dir = new File(new File(cacheDir, jarHash), "v" + FORMAT_VERSION + "-" + config.getKey());
+		return new File(dir, MIDletClassLoader.getClassResourceName(className));
+	}
+
+	/**
+	 * @param classURL
+	 *            class resource URL e.g. <tt>jar:file:/app.jar!/Main.class</tt>
+	 * @return jar file the class is loaded from or <code>null</code> if class is not in local jar
+	 */
+	public static File getJarFile(URL classURL) {
+		if (!"jar".equals(classURL.getProtocol())) {
+			return null;
+		}
+		String path = classURL.getPath();
+		int sep = path.indexOf("!/");
+		if (sep == -1) {
+			return null;
+		}
+		try {
+			URL jarURL = new URL(path.substring(0, sep));
+			if (!"file".equals(jarURL.getProtocol())) {
+				return null;
+			}
+			return new File(jarURL.toURI());
+		} catch (IOException e) {
+			return null;
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * SHA-1 of jar content. Computed once per JVM and recalculated only when jar file changes.
+	 *
+	 * @return hex string or <code>null</code> if jar can't be read
+	 */
+	public static String getJarHash(File jar) {
+		String key = jar.getAbsolutePath();
+		long length = jar.length();
+		long lastModified = jar.lastModified();
+		synchronized (jarHashes) {
+			JarHash h = (JarHash) jarHashes.get(key);
+			if ((h != null) && (h.length == length) && (h.lastModified == lastModified)) {
+				return h.hash;
+			}
+		}
+		String hash;
+		InputStream is = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			is = new FileInputStream(jar);
+			byte[] buf = new byte[1024 * 16];
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				md.update(buf, 0, len);
+			}
+			hash = toHex(md.digest());
+		} catch (IOException e) {
+			Logger.debug("Unable to read jar " + jar, e);
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			Logger.error("SHA-1 not available", e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		JarHash h = new JarHash();
+		h.length = length;
+		h.lastModified = lastModified;
+		h.hash = hash;
+		synchronized (jarHashes) {
+			jarHashes.put(key, h);
+		}
+		return hash;
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuffer buf = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			int b = digest[i] & 0xFF;
+			if (b < 0x10) {
+				buf.append('0');
+			}
+			buf.append(Integer.toHexString(b));
+		}
+		return buf.toString();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			long length = file.length();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("File too big " + file);
+			}
+			byte[] data = new byte[(int) length];
+			int offset = 0;
+			while (offset < data.length) {
+				int len = is.read(data, offset, data.length - offset);
+				if (len == -1) {
+					throw new IOException("Unexpected end of file " + file);
+				}
+				offset += len;
+			}
+			return data;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2006-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *  Copyright (C) 2006-2010 Vlad Skarzhevskyy
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+package org.microemu.app.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.microemu.app.util.IOUtils;
+
+/**
+ * Index of local MIDlet jar central directory built when jar is added to class loader.
+ *
+ * Resources are looked up by name in a hash table and read directly from the open jar. Content of small entries is
+ * kept in SharedClassCache so every class loader using the same jar reads it only once.
+ */
+public class JarResourceIndex {
+
+	/**
+	 * Entries not bigger than this are shared in memory
+	 */
+	public static int smallEntryMaxSize = 64 * 1024;
+
+	private final File file;
+
+	private final ZipFile zipFile;
+
+	private final Map /* <String, ZipEntry> */entries;
+
+	private final SharedClassCache.JarKey jarKey;
+
+	private JarResourceIndex(File file, ZipFile zipFile, Map entries, SharedClassCache.JarKey jarKey) {
+		this.file = file;
+		this.zipFile = zipFile;
+		this.entries = entries;
+		this.jarKey = jarKey;
+	}
+
+	/**
+	 * @param jarKey
+	 *            identity of jar content or <code>null</code> to disable sharing of small entries
+	 */
+	public static JarResourceIndex open(File file, SharedClassCache.JarKey jarKey) throws IOException {
+		ZipFile zipFile = new ZipFile(file);
+		Map entries = new HashMap(zipFile.size() * 4 / 3 + 1);
+		for (Enumeration en = zipFile.entries(); en.hasMoreElements();) {
+			ZipEntry entry = (ZipEntry) en.nextElement();
+			if (!entry.isDirectory()) {
+				entries.put(entry.getName(), entry);
+			}
+		}
+		return new JarResourceIndex(file, zipFile, entries, jarKey);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public SharedClassCache.JarKey getJarKey() {
+		return jarKey;
+	}
+
+	ZipFile getZipFile() {
+		return zipFile;
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @return resource stream or <code>null</code> if there are no such entry in jar
+	 */
+	public InputStream getResourceAsStream(String name) throws IOException {
+		ZipEntry entry = (ZipEntry) entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		long size = entry.getSize();
+		if ((jarKey == null) || (size < 0) || (size > smallEntryMaxSize)) {
+			return zipFile.getInputStream(entry);
+		}
+		byte[] data = SharedClassCache.getResource(jarKey, name);
+		if (data == null) {
+			InputStream is = zipFile.getInputStream(entry);
+			try {
+				data = IOUtils.toByteArray(is, (int) size);
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+			SharedClassCache.putResource(jarKey, name, data);
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	public void close() {
+		try {
+			zipFile.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+}
@@ -29,17 +29,29 @@ package org.microemu.app.classloader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.microemu.app.util.IOUtils;
 import org.microemu.log.Logger;
@@ -64,6 +76,24 @@ public class MIDletClassLoader extends URLClassLoader {
 
 	public static boolean enhanceCatchBlock = false;
 
+	public static boolean cacheInstrumentedClasses = true;
+
+	public static boolean shareInstrumentedClasses = true;
+
+	public static boolean indexJarResources = true;
+
+	/**
+	 * Maximum size of MIDlet class file in bytes, -1 for no limit. CLDC devices used to reject classes bigger than 16
+	 * Kilobyte.
+	 */
+	public static int maxClassSize = -1;
+
+	/**
+	 * Maximum size in bytes of pre-instrumented classes kept in memory until they are loaded. Applies to jars that
+	 * can't use the class caches, e.g. remote ones.
+	 */
+	public static int maxPreparedBytes = 4 * 1024 * 1024;
+
 	public final static boolean debug = false;
 
 	private boolean delegatingToParent = false;
@@ -74,6 +104,27 @@ public class MIDletClassLoader extends URLClassLoader {
 
 	private Set noPreporcessingNames;
 
+	private InstrumentedClassCache classCache;
+
+	/* Keeps shared cache entries of jars used by this class loader */
+	private final Set jarKeys = new HashSet();
+
+	private boolean preInstrument = false;
+
+	/* Classes instrumented ahead of time by preInstrument() which no cache took, removed when defined */
+	private final Map /* <String, byte[]> */preparedClasses = new ConcurrentHashMap();
+
+	private final AtomicInteger preparedBytes = new AtomicInteger();
+
+	/* JarResourceIndex for indexed jars or URL for other locations, in search order */
+	private final List resourceSources = new Vector();
+
+	private static final Object RESOURCE_NOT_FOUND = new Object();
+
+	static {
+		registerAsParallelCapable();
+	}
+
 	/* The context to be used when loading classes and resources */
 	private AccessControlContext acc;
 
@@ -115,6 +166,208 @@ public class MIDletClassLoader extends URLClassLoader {
 		int delegationType = clConfig.getDelegationType(forJad);
 		this.delegatingToParent = (delegationType == MIDletClassLoaderConfig.DELEGATION_DELEGATING);
 		this.findPathInParent = (delegationType == MIDletClassLoaderConfig.DELEGATION_RELAXED);
+		this.preInstrument = clConfig.isPreInstrument();
+	}
+
+	public boolean isPreInstrument() {
+		return preInstrument;
+	}
+
+	/**
+	 * Instrument all classes of the jar in parallel on fork-join pool. Instrumented byte code goes to the class
+	 * caches, or is kept for findClass when the jar can't be cached, so no ASM work is done later on MIDlet threads.
+	 * 
+	 * Classes are read from the JarResourceIndex of the jar or from the jar copy of URL cache, so the jar is not read
+	 * or downloaded again.
+	 * 
+	 * @param jarURL
+	 *            MIDlet jar already added to this class loader
+	 * @return number of prepared classes
+	 */
+	public int preInstrument(URL jarURL) {
+		if (!instrumentMIDletClasses) {
+			return 0;
+		}
+		JarResourceIndex index = findJarResourceIndex(jarURL);
+		ZipFile jar;
+		if (index != null) {
+			jar = index.getZipFile();
+		} else {
+			jar = openJarFile(jarURL);
+			if (jar == null) {
+				return 0;
+			}
+		}
+		final List names = new Vector();
+		final List entries = new Vector();
+		for (Enumeration en = jar.entries(); en.hasMoreElements();) {
+			ZipEntry entry = (ZipEntry) en.nextElement();
+			String entryName = entry.getName();
+			if (entry.isDirectory() || (!entryName.endsWith(".class"))) {
+				continue;
+			}
+			String className = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+			if (classLoadByParent(className)) {
+				continue;
+			}
+			names.add(className);
+			entries.add(entry);
+		}
+
+		String jarHash = null;
+		SharedClassCache.JarKey jarKey = null;
+		if (index != null) {
+			jarHash = InstrumentedClassCache.getJarHash(index.getFile());
+		} else {
+			try {
+				File file = InstrumentedClassCache.getJarFile(new URL("jar:" + jarURL.toExternalForm() + "!/"));
+				if (file != null) {
+					jarHash = InstrumentedClassCache.getJarHash(file);
+				}
+			} catch (MalformedURLException e) {
+			}
+		}
+		if ((jarHash != null) && (shareInstrumentedClasses)) {
+			jarKey = SharedClassCache.getJarKey(jarHash);
+			synchronized (jarKeys) {
+				jarKeys.add(jarKey);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		ForkJoinPool.commonPool().invoke(
+				new PreInstrumentTask(jar, names, entries, 0, names.size(), jarHash, jarKey));
+		if (traceClassLoading) {
+			Logger.info("Pre-instrumented " + names.size() + " classes in " + (System.currentTimeMillis() - start)
+					+ " ms, " + preparedClasses.size() + " kept");
+		}
+		return names.size();
+	}
+
+	private JarResourceIndex findJarResourceIndex(URL jarURL) {
+		if (!"file".equals(jarURL.getProtocol())) {
+			return null;
+		}
+		File file;
+		try {
+			file = new File(jarURL.toURI());
+		} catch (Exception e) {
+			return null;
+		}
+		synchronized (resourceSources) {
+			for (Iterator i = resourceSources.iterator(); i.hasNext();) {
+				Object source = i.next();
+				if ((source instanceof JarResourceIndex) && ((JarResourceIndex) source).getFile().equals(file)) {
+					return (JarResourceIndex) source;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Jar through URL cache, the copy URLClassLoader reads classes from. Not closed, the cache owns it.
+	 */
+	private ZipFile openJarFile(final URL jarURL) {
+		try {
+			return (ZipFile) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException {
+					URL url = new URL("jar:" + jarURL.toExternalForm() + "!/");
+					return ((JarURLConnection) url.openConnection()).getJarFile();
+				}
+			}, acc);
+		} catch (PrivilegedActionException e) {
+			Logger.error("Unable to open jar " + jarURL, e.getException());
+			return null;
+		}
+	}
+
+	private void prepare(String name, byte[] byteCode) {
+		if (preparedBytes.addAndGet(byteCode.length) > maxPreparedBytes) {
+			preparedBytes.addAndGet(-byteCode.length);
+			return;
+		}
+		preparedClasses.put(name, byteCode);
+	}
+
+	private class PreInstrumentTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int THRESHOLD = 8;
+
+		private final ZipFile jar;
+
+		private final List names;
+
+		private final List entries;
+
+		private final int from;
+
+		private final int to;
+
+		private final String jarHash;
+
+		private final SharedClassCache.JarKey jarKey;
+
+		PreInstrumentTask(ZipFile jar, List names, List entries, int from, int to, String jarHash,
+				SharedClassCache.JarKey jarKey) {
+			this.jar = jar;
+			this.names = names;
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.jarHash = jarHash;
+			this.jarKey = jarKey;
+		}
+
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new PreInstrumentTask(jar, names, entries, from, mid, jarHash, jarKey),
+						new PreInstrumentTask(jar, names, entries, mid, to, jarHash, jarKey));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				String name = (String) names.get(i);
+				if ((jarHash != null) && (getCachedByteCode(name, jarHash, jarKey) != null)) {
+					continue;
+				}
+				ZipEntry entry = (ZipEntry) entries.get(i);
+				byte[] byteCode;
+				InputStream is = null;
+				try {
+					is = jar.getInputStream(entry);
+					byteCode = IOUtils.toByteArray(is, (int) entry.getSize());
+				} catch (IOException e) {
+					Logger.debug("Unable to read class " + name, e);
+					continue;
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+				byteCode = ClassPreprocessor.instrument(byteCode, config);
+				if (byteCode == null) {
+					continue;
+				}
+				if (!putCachedByteCode(name, jarHash, jarKey, byteCode)) {
+					prepare(name, byteCode);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enable persistent cache of instrumented classes
+	 * 
+	 * @param classCache
+	 *            the cache or <code>null</code> to disable caching
+	 */
+	public void setInstrumentedClassCache(InstrumentedClassCache classCache) {
+		this.classCache = classCache;
+	}
+
+	public InstrumentedClassCache getInstrumentedClassCache() {
+		return classCache;
 	}
 
 	/**
@@ -154,6 +407,99 @@ public class MIDletClassLoader extends URLClassLoader {
 			Logger.debug("addURL ", url.toString());
 		}
 		super.addURL(url);
+		JarResourceIndex index = null;
+		if (indexJarResources) {
+			index = openJarResourceIndex(url);
+		}
+		resourceSources.add((index != null) ? (Object) index : url);
+	}
+
+	private JarResourceIndex openJarResourceIndex(URL url) {
+		if ((!"file".equals(url.getProtocol())) || (url.getPath().endsWith("/"))) {
+			return null;
+		}
+		final File file;
+		try {
+			file = new File(url.toURI());
+		} catch (Exception e) {
+			return null;
+		}
+		try {
+			return (JarResourceIndex) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException {
+					if (!file.isFile()) {
+						return null;
+					}
+					SharedClassCache.JarKey jarKey = null;
+					if (shareInstrumentedClasses) {
+						String jarHash = InstrumentedClassCache.getJarHash(file);
+						if (jarHash != null) {
+							jarKey = SharedClassCache.getJarKey(jarHash);
+							synchronized (jarKeys) {
+								jarKeys.add(jarKey);
+							}
+						}
+					}
+					return JarResourceIndex.open(file, jarKey);
+				}
+			}, acc);
+		} catch (PrivilegedActionException e) {
+			Logger.debug("Unable to index jar " + url, e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * @return JarResourceIndex containing the resource, RESOURCE_NOT_FOUND when resource is not in this class loader
+	 *         or <code>null</code> when URL search path should be used
+	 */
+	private Object findIndexedResource(String name) {
+		synchronized (resourceSources) {
+			if (resourceSources.isEmpty()) {
+				return null;
+			}
+			for (Iterator i = resourceSources.iterator(); i.hasNext();) {
+				Object source = i.next();
+				if (!(source instanceof JarResourceIndex)) {
+					return null;
+				}
+				if (((JarResourceIndex) source).contains(name)) {
+					return source;
+				}
+			}
+		}
+		return RESOURCE_NOT_FOUND;
+	}
+
+	/**
+	 * Identity of resource content for caches of decoded resources.
+	 * 
+	 * @return SHA-1 of local jar the resource is loaded from or <code>null</code> if resource is not in indexed jar
+	 */
+	public String getResourceJarHash(String name) {
+		Object indexed = findIndexedResource(name);
+		if (!(indexed instanceof JarResourceIndex)) {
+			return null;
+		}
+		JarResourceIndex index = (JarResourceIndex) indexed;
+		if (index.getJarKey() != null) {
+			return index.getJarKey().getJarHash();
+		}
+		return InstrumentedClassCache.getJarHash(index.getFile());
+	}
+
+	public void close() throws IOException {
+		synchronized (resourceSources) {
+			for (Iterator i = resourceSources.iterator(); i.hasNext();) {
+				Object source = i.next();
+				if (source instanceof JarResourceIndex) {
+					((JarResourceIndex) source).close();
+				}
+			}
+			resourceSources.clear();
+		}
+		preparedClasses.clear();
+		super.close();
 	}
 
 	/**
@@ -190,7 +536,13 @@ public class MIDletClassLoader extends URLClassLoader {
 	 * </ol>
 	 * 
 	 */
-	protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+	protected Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		synchronized (getClassLoadingLock(name)) {
+			return loadClassLocked(name, resolve);
+		}
+	}
+
+	private Class loadClassLocked(String name, boolean resolve) throws ClassNotFoundException {
 		if (debug) {
 			Logger.debug("loadClass", name);
 		}
@@ -267,14 +619,37 @@ public class MIDletClassLoader extends URLClassLoader {
 	}
 
 	/**
-	 * Allow access to resources
+	 * Allow access to resources. Resources of local jars are served from jar index without searching class path URLs.
 	 */
-	public InputStream getResourceAsStream(String name) {
+	public InputStream getResourceAsStream(final String name) {
+		final Object indexed = findIndexedResource(name);
+		if (indexed == RESOURCE_NOT_FOUND) {
+			if (delegatingToParent && (getParent() != null)) {
+				return getParent().getResourceAsStream(name);
+			}
+			return null;
+		} else if (indexed != null) {
+			try {
+				return (InputStream) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+					public Object run() throws IOException {
+						return ((JarResourceIndex) indexed).getResourceAsStream(name);
+					}
+				}, acc);
+			} catch (PrivilegedActionException e) {
+				if (debug) {
+					Logger.debug("Unable to open resource " + name + " ", e);
+				}
+				return null;
+			}
+		}
 		final URL url = getResource(name);
 		if (url == null) {
 			return null;
 		}
+		return openResourceStream(url);
+	}
 
+	private InputStream openResourceStream(final URL url) {
 		try {
 			return (InputStream) AccessController.doPrivileged(new PrivilegedExceptionAction() {
 				public Object run() throws IOException {
@@ -283,7 +658,7 @@ public class MIDletClassLoader extends URLClassLoader {
 			}, acc);
 		} catch (PrivilegedActionException e) {
 			if (debug) {
-				Logger.debug("Unable to find resource for class " + name + " ", e);
+				Logger.debug("Unable to open resource " + url + " ", e);
 			}
 			return null;
 		}
@@ -331,6 +706,36 @@ public class MIDletClassLoader extends URLClassLoader {
 		return className.replace('.', '/').concat(".class");
 	}
 
+	private byte[] getCachedByteCode(String name, String jarHash, SharedClassCache.JarKey jarKey) {
+		byte[] byteCode = null;
+		if (jarKey != null) {
+			byteCode = SharedClassCache.get(jarKey, name, config);
+		}
+		if ((byteCode == null) && (classCache != null)) {
+			byteCode = classCache.get(jarHash, name, config);
+			if ((byteCode != null) && (jarKey != null)) {
+				SharedClassCache.put(jarKey, name, config, byteCode);
+			}
+		}
+		return byteCode;
+	}
+
+	/**
+	 * @return <code>false</code> if no cache took the byte code
+	 */
+	private boolean putCachedByteCode(String name, String jarHash, SharedClassCache.JarKey jarKey, byte[] byteCode) {
+		boolean cached = false;
+		if (jarKey != null) {
+			SharedClassCache.put(jarKey, name, config, byteCode);
+			cached = true;
+		}
+		if ((jarHash != null) && (classCache != null)) {
+			classCache.put(jarHash, name, config, byteCode);
+			cached = true;
+		}
+		return cached;
+	}
+
 	protected Class findClass(final String name) throws ClassNotFoundException {
 		if (debug) {
 			Logger.debug("findClass", name);
@@ -338,92 +743,106 @@ public class MIDletClassLoader extends URLClassLoader {
 		if (classLoadByParent(name)) {
 			throw new LoadClassByParentException(name);
 		}
-		InputStream is;
-		try {
-			is = (InputStream) AccessController.doPrivileged(new PrivilegedExceptionAction() {
-				public Object run() throws ClassNotFoundException {
-					return getResourceAsStream(getClassResourceName(name));
-				}
-			}, acc);
-
-			// Relax ClassLoader behavior
-			if ((is == null) && (this.findPathInParent)) {
-				boolean classFound;
-				try {
-					addClassURL(name);
-					classFound = true;
-				} catch (MalformedURLException e) {
-					classFound = false;
-				}
-				if (classFound) {
-					is = (InputStream) AccessController.doPrivileged(new PrivilegedExceptionAction() {
-						public Object run() throws ClassNotFoundException {
-							return getResourceAsStream(getClassResourceName(name));
-						}
-					}, acc);
-				}
+		byte[] prepared = (byte[]) preparedClasses.remove(name);
+		if (prepared != null) {
+			preparedBytes.addAndGet(-prepared.length);
+			if (traceClassLoading) {
+				Logger.info("Load MIDlet class pre-instrumented", name);
 			}
-		} catch (PrivilegedActionException e) {
-			if (debug) {
-				Logger.debug("Unable to find resource for class " + name + " ", e);
+			return defineClass(name, prepared, 0, prepared.length);
+		}
+		final String resourceName = getClassResourceName(name);
+		URL url = getResource(resourceName);
+		// Relax ClassLoader behavior
+		if ((url == null) && (this.findPathInParent)) {
+			try {
+				addClassURL(name);
+				url = getResource(resourceName);
+			} catch (MalformedURLException e) {
 			}
-			throw new ClassNotFoundException(name, e.getCause());
 		}
-
-		if (is == null) {
+		if (url == null) {
 			if (debug) {
 				Logger.debug("Unable to find resource for class", name);
 			}
 			throw new ClassNotFoundException(name);
 		}
-		byte[] byteCode;
-		int byteCodeLength;
-		try {
-			if (traceClassLoading) {
-				Logger.info("Load MIDlet class", name);
+
+		String jarHash = null;
+		SharedClassCache.JarKey jarKey = null;
+		if ((instrumentMIDletClasses) && ((classCache != null) || (shareInstrumentedClasses))) {
+			File jar = InstrumentedClassCache.getJarFile(url);
+			if (jar != null) {
+				jarHash = InstrumentedClassCache.getJarHash(jar);
 			}
-			if (instrumentMIDletClasses) {
-				byteCode = ClassPreprocessor.instrument(is, config);
-				byteCodeLength = byteCode.length;
-			} else {
-				final int chunkSize = 1024 * 2;
-				// No class or data object must be bigger than 16 Kilobyte
-				final int maxClassSizeSize = 1024 * 16;
-				byteCode = new byte[chunkSize];
-				byteCodeLength = 0;
-				do {
-					int retrived;
-					try {
-						retrived = is.read(byteCode, byteCodeLength, byteCode.length - byteCodeLength);
-					} catch (IOException e) {
-						throw new ClassNotFoundException(name, e);
+			if (jarHash != null) {
+				if (shareInstrumentedClasses) {
+					jarKey = SharedClassCache.getJarKey(jarHash);
+					synchronized (jarKeys) {
+						jarKeys.add(jarKey);
 					}
-					if (retrived == -1) {
-						break;
-					}
-					if (byteCode.length + chunkSize > maxClassSizeSize) {
-						throw new ClassNotFoundException(name, new ClassFormatError(
-								"Class object is bigger than 16 Kilobyte"));
-					}
-					byteCodeLength += retrived;
-					if (byteCode.length == byteCodeLength) {
-						byte[] newData = new byte[byteCode.length + chunkSize];
-						System.arraycopy(byteCode, 0, newData, 0, byteCode.length);
-						byteCode = newData;
-					} else if (byteCode.length < byteCodeLength) {
-						throw new ClassNotFoundException(name, new ClassFormatError("Internal read error"));
+				}
+				byte[] byteCode = getCachedByteCode(name, jarHash, jarKey);
+				if (byteCode != null) {
+					if (traceClassLoading) {
+						Logger.info("Load MIDlet class from cache", name);
 					}
-				} while (true);
+					return defineClass(name, byteCode, 0, byteCode.length);
+				}
 			}
-		} finally {
-			try {
-				is.close();
-			} catch (IOException ignore) {
+		}
+
+		byte[] byteCode;
+		try {
+			byteCode = readClassBytes(url);
+		} catch (IOException e) {
+			if (debug) {
+				Logger.debug("Unable to open resource for class", name);
+			}
+			throw new ClassNotFoundException(name, e);
+		}
+		if ((maxClassSize >= 0) && (byteCode.length > maxClassSize)) {
+			throw new ClassNotFoundException(name, new ClassFormatError("Class object is bigger than " + maxClassSize
+					+ " bytes"));
+		}
+		if (traceClassLoading) {
+			Logger.info("Load MIDlet class", name);
+		}
+		if (instrumentMIDletClasses) {
+			byteCode = ClassPreprocessor.instrument(byteCode, config);
+			if (byteCode == null) {
+				throw new ClassNotFoundException(name, new ClassFormatError("Unable to instrument class"));
+			}
+			putCachedByteCode(name, jarHash, jarKey, byteCode);
+			if (debug) {
+				Logger.debug("instrumented ", name);
 			}
 		}
-		if ((debug) && (instrumentMIDletClasses)) {
-			Logger.debug("instrumented ", name);
+		return defineClass(name, byteCode, 0, byteCode.length);
+	}
+
+	/**
+	 * Read class file in one pass, buffer is allocated using jar entry size when it is known.
+	 */
+	private byte[] readClassBytes(final URL url) throws IOException {
+		try {
+			return (byte[]) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException {
+					URLConnection connection = url.openConnection();
+					int size = connection.getContentLength();
+					if ((maxClassSize >= 0) && (size > maxClassSize)) {
+						throw new IOException("Class object is bigger than " + maxClassSize + " bytes");
+					}
+					InputStream is = connection.getInputStream();
+					try {
+						return IOUtils.toByteArray(is, size);
+					} finally {
+						IOUtils.closeQuietly(is);
+					}
+				}
+			}, acc);
+		} catch (PrivilegedActionException e) {
+			throw (IOException) e.getException();
 		}
-		return defineClass(name, byteCode, 0, byteCodeLength);
 	}
 }
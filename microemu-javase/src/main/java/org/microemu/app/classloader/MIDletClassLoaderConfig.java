@@ -45,6 +45,8 @@ public class MIDletClassLoaderConfig {
 
     private boolean delegationSelected;
 
+    private boolean preInstrument = false;
+
     List appclasses = new Vector();
 
     List appclasspath = new Vector();
@@ -84,6 +86,17 @@ public class MIDletClassLoaderConfig {
         return (this.delegationType == DELEGATION_SYSTEM);
     }
 
+    /**
+     * Instrument all classes of MIDlet jar in parallel when jar is loaded
+     */
+    public void setPreInstrument(boolean preInstrument) {
+        this.preInstrument = preInstrument;
+    }
+
+    public boolean isPreInstrument() {
+        return preInstrument;
+    }
+
     public void addAppClassPath(String path) throws ConfigurationException {
         if (this.delegationType == DELEGATION_SYSTEM) {
             throw new ConfigurationException("Can't extend system CLASSPATH");
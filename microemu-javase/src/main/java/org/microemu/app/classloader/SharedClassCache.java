@@ -0,0 +1,254 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2006-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *  Copyright (C) 2006-2010 Vlad Skarzhevskyy
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+package org.microemu.app.classloader;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM wide in memory cache of instrumented MIDlet classes and small jar resources shared by all MIDletClassLoader
+ * instances.
+ *
+ * Entries are kept while at least one class loader holds the {@link JarKey} of the jar they come from. The total
+ * size of cached byte code is bounded, least recently used classes are evicted first.
+ */
+public class SharedClassCache {
+
+	public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+	private static long maxSize = DEFAULT_MAX_SIZE;
+
+	private static long size = 0;
+
+	private static int hitCount;
+
+	private static int missCount;
+
+	private static int resourceHitCount;
+
+	private static int resourceMissCount;
+
+	/* Resources are stored with this instrumentation key */
+	private static final String RESOURCE_KEY = "";
+
+	private static final Map /* <String, JarKeyReference> */jarKeys = new HashMap();
+
+	private static final ReferenceQueue jarKeysQueue = new ReferenceQueue();
+
+	private static final LinkedHashMap /* <EntryKey, byte[]> */entries = new LinkedHashMap(256, 0.75f, true);
+
+	/**
+	 * Identity of jar content. MIDletClassLoader keeps strong reference to keys of its jars.
+	 */
+	public static final class JarKey {
+
+		private final String jarHash;
+
+		private JarKey(String jarHash) {
+			this.jarHash = jarHash;
+		}
+
+		public String getJarHash() {
+			return jarHash;
+		}
+
+	}
+
+	private static class JarKeyReference extends WeakReference {
+
+		final String jarHash;
+
+		JarKeyReference(JarKey key, ReferenceQueue queue) {
+			super(key, queue);
+			this.jarHash = key.jarHash;
+		}
+
+	}
+
+	private static class EntryKey {
+
+		final String jarHash;
+
+		final String name;
+
+		final String configKey;
+
+		EntryKey(String jarHash, String name, String configKey) {
+			this.jarHash = jarHash;
+			this.name = name;
+			this.configKey = configKey;
+		}
+
+		public int hashCode() {
+			return (jarHash.hashCode() * 31 + name.hashCode()) * 31 + configKey.hashCode();
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof EntryKey)) {
+				return false;
+			}
+			EntryKey k = (EntryKey) obj;
+			return jarHash.equals(k.jarHash) && name.equals(k.name) && configKey.equals(k.configKey);
+		}
+
+	}
+
+	public static synchronized JarKey getJarKey(String jarHash) {
+		expungeStaleEntries();
+		JarKeyReference ref = (JarKeyReference) jarKeys.get(jarHash);
+		JarKey key = (ref == null) ? null : (JarKey) ref.get();
+		if (key == null) {
+			key = new JarKey(jarHash);
+			jarKeys.put(jarHash, new JarKeyReference(key, jarKeysQueue));
+		}
+		return key;
+	}
+
+	/**
+	 * @return instrumented byte code or <code>null</code> if class is not in cache
+	 */
+	public static synchronized byte[] get(JarKey jarKey, String className, InstrumentationConfig config) {
+		byte[] byteCode = (byte[]) entries.get(new EntryKey(jarKey.jarHash, className, config.getKey()));
+		if (byteCode != null) {
+			hitCount++;
+		} else {
+			missCount++;
+		}
+		return byteCode;
+	}
+
+	public static void put(JarKey jarKey, String className, InstrumentationConfig config, byte[] byteCode) {
+		put(new EntryKey(jarKey.jarHash, className, config.getKey()), byteCode);
+	}
+
+	private static synchronized void put(EntryKey key, byte[] data) {
+		if (data.length > maxSize) {
+			return;
+		}
+		expungeStaleEntries();
+		byte[] prev = (byte[]) entries.put(key, data);
+		if (prev != null) {
+			size -= prev.length;
+		}
+		size += data.length;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @return resource content or <code>null</code> if resource is not in cache
+	 */
+	public static synchronized byte[] getResource(JarKey jarKey, String name) {
+		byte[] data = (byte[]) entries.get(new EntryKey(jarKey.jarHash, name, RESOURCE_KEY));
+		if (data != null) {
+			resourceHitCount++;
+		} else {
+			resourceMissCount++;
+		}
+		return data;
+	}
+
+	public static void putResource(JarKey jarKey, String name, byte[] data) {
+		put(new EntryKey(jarKey.jarHash, name, RESOURCE_KEY), data);
+	}
+
+	public static synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum size of cached byte code in bytes, 0 disables the cache
+	 */
+	public static synchronized void setMaxSize(long maxSize) {
+		SharedClassCache.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public static synchronized long getSize() {
+		return size;
+	}
+
+	public static synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public static synchronized int getMissCount() {
+		return missCount;
+	}
+
+	public static synchronized int getResourceHitCount() {
+		return resourceHitCount;
+	}
+
+	public static synchronized int getResourceMissCount() {
+		return resourceMissCount;
+	}
+
+	public static synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public static synchronized String getStatistics() {
+		return "SharedClassCache[entries=" + entries.size() + ", size=" + size + ", hits=" + hitCount + ", misses="
+				+ missCount + ", resource hits=" + resourceHitCount + ", resource misses=" + resourceMissCount + "]";
+	}
+
+	private static void trimToSize(long limit) {
+		for (Iterator i = entries.values().iterator(); (size > limit) && i.hasNext();) {
+			size -= ((byte[]) i.next()).length;
+			i.remove();
+		}
+	}
+
+	/**
+	 * Remove classes of jars no longer used by any class loader
+	 */
+	private static void expungeStaleEntries() {
+		Reference ref;
+		while ((ref = jarKeysQueue.poll()) != null) {
+			String jarHash = ((JarKeyReference) ref).jarHash;
+			if (jarKeys.get(jarHash) == ref) {
+				jarKeys.remove(jarHash);
+			} else {
+				// Jar was opened again, new key is in use
+				continue;
+			}
+			for (Iterator i = entries.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				if (((EntryKey) entry.getKey()).jarHash.equals(jarHash)) {
+					size -= ((byte[]) entry.getValue()).length;
+					i.remove();
+				}
+			}
+		}
+	}
+
+}
@@ -98,6 +98,41 @@ public class IOUtils {
 		}
 	}
 	
+	/**
+	 * Read stream till the end in a single pass.
+	 * 
+	 * @param expectedSize
+	 *            size of the data if known e.g. from jar entry, or -1
+	 */
+	public static byte[] toByteArray(InputStream is, int expectedSize) throws IOException {
+		byte[] buf = new byte[(expectedSize > 0) ? expectedSize : 1024 * 4];
+		int length = 0;
+		while (true) {
+			if (length == buf.length) {
+				// Known size reached, check for end of stream before growing
+				int b = is.read();
+				if (b == -1) {
+					break;
+				}
+				byte[] newBuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, newBuf, 0, length);
+				buf = newBuf;
+				buf[length++] = (byte) b;
+			}
+			int len = is.read(buf, length, buf.length - length);
+			if (len == -1) {
+				break;
+			}
+			length += len;
+		}
+		if (length == buf.length) {
+			return buf;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(buf, 0, result, 0, length);
+		return result;
+	}
+
     /**
      * Unconditionally close an <code>InputStream</code>.
      * <p>
@@ -28,6 +28,7 @@ package org.microemu.app.util;
 
 import java.io.InputStream;
 
+import org.microemu.EmulatorInstance;
 import org.microemu.Injected;
 import org.microemu.app.classloader.MIDletClassLoader;
 import org.microemu.log.Logger;
@@ -51,14 +52,23 @@ public class MIDletResourceLoader {
 
 	public static boolean traceResourceLoading = false;
 
+	private static final String CLASS_LOADER_ATTRIBUTE = MIDletResourceLoader.class.getName() + ".classLoader";
+
+	private static final String FQCN = Injected.class.getName();
+
 	/**
-	 * @deprecated find better solution to share variable
+	 * @return MIDlet ClassLoader of current EmulatorInstance
 	 */
-	public static ClassLoader classLoader;
+	public static ClassLoader getClassLoader() {
+		return (ClassLoader) EmulatorInstance.getInstance().getAttribute(CLASS_LOADER_ATTRIBUTE);
+	}
 
-	private static final String FQCN = Injected.class.getName();
+	public static void setClassLoader(ClassLoader classLoader) {
+		EmulatorInstance.getInstance().setAttribute(CLASS_LOADER_ATTRIBUTE, classLoader);
+	}
 
 	public static InputStream getResourceAsStream(Class origClass, String resourceName) {
+		ClassLoader classLoader = getClassLoader();
 		if (traceResourceLoading) {
 			Logger.debug("Loading MIDlet resource", resourceName);
 		}
@@ -26,10 +26,16 @@
  */
 package org.microemu.app.util;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 
+import org.microemu.EmulatorClock;
+import org.microemu.EmulatorInstance;
+import org.microemu.EmulatorScheduler;
 import org.microemu.MIDletBridge;
 import org.microemu.MIDletContext;
 import org.microemu.log.Logger;
@@ -43,6 +49,16 @@ import org.microemu.util.ThreadUtils;
 public class MIDletThread extends Thread {
 
 	public static int graceTerminationPeriod = 5000;
+
+	/**
+	 * Run MIDlet threads on virtual threads when Java 21 or newer is available. MIDletThread object stays the
+	 * Thread seen by MIDlet, its state is taken from the virtual thread.
+	 *
+	 * Before Java 24 a virtual thread that waits or sleeps inside a synchronized block stays pinned to its carrier
+	 * thread. MIDlets mostly wait that way, so with many such threads the carrier pool is exhausted and thousands
+	 * of MIDlet threads are not reached.
+	 */
+	public static boolean virtualThreads = false;
 	
 	private static final String THREAD_NAME_PREFIX = "MIDletThread-";
 	
@@ -54,6 +70,23 @@ public class MIDletThread extends Thread {
     
     private String callLocation;
     
+    private static boolean virtualThreadsChecked = false;
+
+    private static Method ofVirtualMethod;
+
+    private static Method builderNameMethod;
+
+    private static Method builderUnstartedMethod;
+
+    // MIDletThread running in current virtual thread
+    private static final ThreadLocal currentMIDletThread = new ThreadLocal();
+
+    private final EmulatorInstance instance = EmulatorInstance.getInstance();
+
+    private MIDletContext midletContext;
+
+    private volatile Thread virtualThread;
+    
     private static synchronized int nextThreadNum() {
     	return threadInitNumber++;
     }
@@ -84,15 +117,157 @@ public class MIDletThread extends Thread {
 			Logger.error("Creating thread with no MIDlet context", new Throwable());
 			return;
 		}
+		thread.midletContext = midletContext;
 		thread.callLocation  = ThreadUtils.getCallLocation(MIDletThread.class.getName());
-		Map threads = (Map)midlets.get(midletContext);
-		if (threads == null) {
-			threads = new WeakHashMap();
-			midlets.put(midletContext, threads);
+		synchronized (midlets) {
+			Map threads = (Map)midlets.get(midletContext);
+			if (threads == null) {
+				threads = new WeakHashMap();
+				midlets.put(midletContext, threads);
+			}
+			threads.put(thread, midletContext);
 		}
-		threads.put(thread, midletContext);
 	}
 	
+	public void start() {
+		startThread();
+		if (instance.getClock().isManual()) {
+			// SimulationDriver lets the new thread run alone until it waits
+			try {
+				EmulatorClock.yieldThread();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void startThread() {
+		if (!virtualThreads || !isVirtualThreadsAvailable()) {
+			super.start();
+			return;
+		}
+		if (virtualThread != null) {
+			throw new IllegalThreadStateException();
+		}
+		Thread thread;
+		try {
+			Object builder = ofVirtualMethod.invoke(null, (Object[]) null);
+			builder = builderNameMethod.invoke(builder, new Object[] { getName() });
+			thread = (Thread) builderUnstartedMethod.invoke(builder, new Object[] { new Runnable() {
+				public void run() {
+					runVirtual();
+				}
+			} });
+		} catch (Throwable e) {
+			Logger.error("Can't create virtual thread", e);
+			super.start();
+			return;
+		}
+		virtualThread = thread;
+		thread.start();
+	}
+
+	private void runVirtual() {
+		currentMIDletThread.set(this);
+		EmulatorInstance.setThreadInstance(instance);
+		MIDletBridge.setThreadMIDletContext(midletContext);
+		try {
+			// run() of MIDlet Thread subclass or MIDletThread.run() with Runnable target
+			run();
+		} catch (Throwable e) {
+			Logger.debug("MIDletThread throws", e);
+		}
+	}
+
+	private static synchronized boolean isVirtualThreadsAvailable() {
+		if (!virtualThreadsChecked) {
+			virtualThreadsChecked = true;
+			try {
+				Class builderClass = Class.forName("java.lang.Thread$Builder");
+				ofVirtualMethod = Thread.class.getMethod("ofVirtual", (Class[]) null);
+				builderNameMethod = builderClass.getMethod("name", new Class[] { String.class });
+				builderUnstartedMethod = builderClass.getMethod("unstarted", new Class[] { Runnable.class });
+			} catch (Throwable e) {
+				ofVirtualMethod = null;
+				Logger.warn("Virtual threads need Java 21 or newer, using platform threads");
+			}
+		}
+		return (ofVirtualMethod != null);
+	}
+
+	/**
+	 * Thread that runs the code of this MIDletThread
+	 */
+	private Thread getExecutingThread() {
+		Thread thread = virtualThread;
+		return (thread != null) ? thread : this;
+	}
+
+	public void interrupt() {
+		Thread thread = virtualThread;
+		if (thread != null) {
+			thread.interrupt();
+		} else {
+			super.interrupt();
+		}
+	}
+
+	public boolean isInterrupted() {
+		Thread thread = virtualThread;
+		if (thread != null) {
+			return thread.isInterrupted();
+		}
+		return super.isInterrupted();
+	}
+
+	public StackTraceElement[] getStackTrace() {
+		Thread thread = virtualThread;
+		if (thread != null) {
+			return thread.getStackTrace();
+		}
+		return super.getStackTrace();
+	}
+
+	/**
+	 * Replaces Thread.currentThread() in MIDlet code, returns MIDletThread instead of virtual thread running it
+	 */
+	public static Thread getCurrentThread() {
+		if (virtualThreads) {
+			Thread thread = (Thread) currentMIDletThread.get();
+			if (thread != null) {
+				return thread;
+			}
+		}
+		return Thread.currentThread();
+	}
+
+	/**
+	 * Replaces Thread.isAlive() in MIDlet code
+	 */
+	public static boolean isThreadAlive(Thread thread) {
+		if (thread instanceof MIDletThread) {
+			return ((MIDletThread) thread).getExecutingThread().isAlive();
+		}
+		return thread.isAlive();
+	}
+
+	/**
+	 * Replaces Thread.join() in MIDlet code
+	 */
+	public static void joinThread(Thread thread) throws InterruptedException {
+		joinThread(thread, 0);
+	}
+
+	/**
+	 * Replaces Thread.join(long) in MIDlet code
+	 */
+	public static void joinThread(Thread thread, long millis) throws InterruptedException {
+		if (thread instanceof MIDletThread) {
+			thread = ((MIDletThread) thread).getExecutingThread();
+		}
+		thread.join(millis);
+	}
+
 	//TODO overrite run() in user Threads using ASM
 	public void run() {
 		 try {
@@ -111,7 +286,10 @@ public class MIDletThread extends Thread {
 		if (midletContext == null) {
 			return;
 		}
-		final Map threads = (Map)midlets.remove(midletContext);
+		final Map threads;
+		synchronized (midlets) {
+			threads = (Map)midlets.remove(midletContext);
+		}
 		if ((threads != null) && (threads.size() != 0)) {
 			terminator = true;
 			Thread terminator = new Thread("MIDletThreadsTerminator") {
@@ -122,8 +300,40 @@ public class MIDletThread extends Thread {
 			terminator.start();
 		}
 		MIDletTimer.contextDestroyed(midletContext);
+		EmulatorScheduler.cancel(midletContext);
 	}
 	
+	/**
+	 * Used by SimulationDriver to decide that a tick is done. Threads waiting for the manual clock, in wait() or
+	 * join() are idle, runnable threads and threads blocked on a monitor are not.
+	 * 
+	 * @return <code>true</code> if a started MIDlet thread of the instance is not idle
+	 */
+	public static boolean hasRunnableThreads(EmulatorInstance instance) {
+		EmulatorClock clock = instance.getClock();
+		List list = new ArrayList();
+		synchronized (midlets) {
+			for (Iterator iter = midlets.values().iterator(); iter.hasNext();) {
+				list.addAll(((Map) iter.next()).keySet());
+			}
+		}
+		for (Iterator iter = list.iterator(); iter.hasNext();) {
+			Object o = iter.next();
+			if (!(o instanceof MIDletThread) || (((MIDletThread) o).instance != instance)) {
+				continue;
+			}
+			Thread thread = ((MIDletThread) o).getExecutingThread();
+			if (!thread.isAlive() || clock.isWaiting(thread)) {
+				continue;
+			}
+			Thread.State state = thread.getState();
+			if ((state == Thread.State.RUNNABLE) || (state == Thread.State.BLOCKED)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public static boolean hasRunningThreads(MIDletContext midletContext) {
 		//return (midlets.get(midletContext) != null);
 		return terminator;
@@ -138,16 +348,16 @@ public class MIDletThread extends Thread {
 			}
 			if (o instanceof MIDletThread) {
 				MIDletThread t = (MIDletThread) o;
-				if (t.isAlive()) {
+				if (isThreadAlive(t)) {
 					Logger.info("wait thread [" + t.getName() + "] end");
-					while ((endTime > System.currentTimeMillis()) && (t.isAlive())) {
+					while ((endTime > System.currentTimeMillis()) && (isThreadAlive(t))) {
 						try {
-							t.join(700);
+							joinThread(t, 700);
 						} catch (InterruptedException e) {
 							break;
 						}
 					}
-					if (t.isAlive()) {
+					if (isThreadAlive(t)) {
 						Logger.warn("MIDlet thread [" + t.getName() + "] still running" + ThreadUtils.getTreadStackTrace(t));
 						if (t.callLocation != null) {
 							Logger.info("this thread [" + t.getName() + "] was created from " + t.callLocation);
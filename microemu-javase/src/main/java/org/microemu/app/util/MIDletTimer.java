@@ -36,13 +36,16 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.WeakHashMap;
 
+import org.microemu.EmulatorClock;
+import org.microemu.EmulatorScheduler;
 import org.microemu.MIDletBridge;
 import org.microemu.MIDletContext;
 import org.microemu.log.Logger;
 
 /**
- * Terminate all timers on MIDlet exit. TODO Name all the timer Threads created
- * by MIDlet in Java 5
+ * Terminate all timers on MIDlet exit. Timers have no own threads, their tasks
+ * run in EmulatorScheduler threads. The pool is shared by all instances, a
+ * TimerTask that blocks ties up one of its few threads while it runs.
  * 
  * @author vlads
  */
@@ -50,61 +53,79 @@ public class MIDletTimer extends Timer implements Runnable {
 
 	private static Map midlets = new WeakHashMap();
 
+	private static long timerCount = 0;
+
 	private String name;
 
+	// Creation order, orders timers with equal task time in SimulationDriver
+	private final long sequence;
+
 	private MIDletContext midletContext;
 	
-	// TODO use better data structure
-	List tasks;
+	// Guards tasks and state of this timer
+	final MIDletTimerQueue queue;
 	
 	private boolean cancelled;
 
-	private MIDletThread thread;
+	// Wake-up of this timer in EmulatorScheduler at time of the first task
+	private EmulatorScheduler.Task wakeUp;
+
+	private long wakeUpTime;
+
+	// Tasks of one timer never run concurrently
+	private boolean running;
+
+	// Task times are in MIDlet time of the instance
+	private final EmulatorClock clock = EmulatorClock.getClock();
 	
 	public MIDletTimer() {
 		super();
+		// Tasks run in EmulatorScheduler, stop the thread started by java.util.Timer
+		super.cancel();
 		StackTraceElement[] ste = new Throwable().getStackTrace();
 		name = ste[1].getClassName() + "." + ste[1].getMethodName();
-		tasks = new ArrayList();
+		queue = new MIDletTimerQueue();
 		cancelled = false;
-		thread = new MIDletThread(this);
-		thread.start();
+		synchronized (midlets) {
+			sequence = timerCount++;
+		}
 	}
 
-	// TODO exceptions
 	public void schedule(TimerTask task, Date time) {
 		register(this);
-		schedule(task, time.getTime(), -1, false);
+		sched(task, time.getTime(), 0);
 	}
 
-	// TODO exceptions
 	public void schedule(TimerTask task, Date firstTime, long period) {
 		register(this);
-		schedule(task, firstTime.getTime(), period, false);
+		checkPeriod(period);
+		sched(task, firstTime.getTime(), -period);
 	}
 
-	// TODO exceptions
 	public void schedule(TimerTask task, long delay) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, -1, false);
+		checkDelay(delay);
+		sched(task, clock.getTime() + delay, 0);
 	}
 
-	// TODO exceptions
 	public void schedule(TimerTask task, long delay, long period) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, period, false);
+		checkDelay(delay);
+		checkPeriod(period);
+		sched(task, clock.getTime() + delay, -period);
 	}
 
-	// TODO exceptions
 	public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
 		register(this);
-		schedule(task, firstTime.getTime(), period, true);
+		checkPeriod(period);
+		sched(task, firstTime.getTime(), period);
 	}
 
-	// TODO exceptions
 	public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, period, true);
+		checkDelay(delay);
+		checkPeriod(period);
+		sched(task, clock.getTime() + delay, period);
 	}
 
 	public void cancel() {
@@ -113,85 +134,124 @@ public class MIDletTimer extends Timer implements Runnable {
 		terminate();
 	}
 	
+	/**
+	 * Cancelled tasks are removed from the queue immediately, there is nothing to purge.
+	 * 
+	 * @return 0
+	 */
+	public int purge() {
+		return 0;
+	}
+
+	/**
+	 * Run the first due task in EmulatorScheduler thread. Further due tasks run in the next wake-up, so a fixed-rate
+	 * task slower than its period does not keep the pool thread.
+	 */
 	public void run() {
-		while (!cancelled) {
-			MIDletTimerTask task = null;
-			long nextTimeTask = Long.MAX_VALUE;
-			synchronized (tasks) {
-				Iterator it = tasks.iterator();
-				while (it.hasNext()) {
-					MIDletTimerTask candidate = (MIDletTimerTask) it.next();
-					if (candidate.time > System.currentTimeMillis()) {
-						if (candidate.time < nextTimeTask) {
-							nextTimeTask = candidate.time;
-						}
-						continue;
-					}
-					if (task == null) {
-						task = candidate;
-					} else if (candidate.time < task.time) {
-						if (task.time < nextTimeTask) {
-							nextTimeTask = task.time;
-						}
-						task = candidate;
-					} else if (candidate.time < nextTimeTask) {
-						nextTimeTask = candidate.time;
-					}
-				}
-				if (task != null) {
-					if (task.period > 0) {
-						task.oneTimeTaskExcecuted = true;
-					}
-					tasks.remove(task);
-				}
+		MIDletTimerTask task;
+		synchronized (queue) {
+			if (running || cancelled) {
+				return;
 			}
-			
-			if (task != null) {
-				try {
-					task.run();
-
-					synchronized (tasks) {
-						// TODO implement scheduling for fixed rate tasks	
-						if (task.period > 0) {
-							task.time = System.currentTimeMillis() + task.period;
-							tasks.add(task);
-							if (task.time < nextTimeTask) {
-								nextTimeTask = task.time;
-							}
-						}
-					}
-				} catch (Throwable t) {
-					Logger.debug("MIDletTimerTask throws", t);
-				}
+			cancelWakeUp();
+			task = queue.getMin();
+			if ((task == null) || (task.time > clock.getTime())) {
+				scheduleWakeUp();
+				return;
 			}
-			
-			synchronized (tasks) {
-				try {
-					if (nextTimeTask == Long.MAX_VALUE) {
-						tasks.wait();
-					} else {
-						long timeout = nextTimeTask - System.currentTimeMillis();
-						if (timeout > 0) {
-							tasks.wait(timeout);
-						}
-					}
-				} catch (InterruptedException e) {
-				}
+			running = true;
+			if (task.period == 0) {
+				queue.remove(task);
+				task.state = MIDletTimerTask.EXECUTED;
+			} else if (task.period < 0) {
+				// fixed-delay
+				queue.reschedule(task, clock.getTime() - task.period);
+			} else {
+				// fixed-rate
+				queue.reschedule(task, task.time + task.period);
 			}
 		}
+		try {
+			task.run();
+		} catch (Throwable t) {
+			Logger.debug("MIDletTimerTask throws", t);
+		} finally {
+			synchronized (queue) {
+				running = false;
+				scheduleWakeUp();
+			}
+		}
+	}
+
+	/**
+	 * Schedule wake-up at time of the first task, called with lock on queue
+	 */
+	private void scheduleWakeUp() {
+		if (running || cancelled) {
+			return;
+		}
+		if (clock.isManual()) {
+			// SimulationDriver runs due tasks after each tick
+			return;
+		}
+		MIDletTimerTask task = queue.getMin();
+		if (task == null) {
+			cancelWakeUp();
+			return;
+		}
+		if ((wakeUp != null) && (wakeUpTime <= task.time)) {
+			return;
+		}
+		cancelWakeUp();
+		wakeUpTime = task.time;
+		wakeUp = EmulatorScheduler.schedule(this, clock.toWallTime(task.time - clock.getTime()));
+	}
+
+	private void cancelWakeUp() {
+		if (wakeUp != null) {
+			wakeUp.cancel();
+			wakeUp = null;
+		}
 	}
 
 	private void terminate() {
-		cancelled = true;
+		synchronized (queue) {
+			cancelled = true;
+			queue.clear();
+			cancelWakeUp();
+		}
 	}
 	
-	private void schedule(TimerTask task, long time, long period, boolean fixedRate) {
-		synchronized (tasks) {
-			((MIDletTimerTask) task).timer = this;
-			((MIDletTimerTask) task).time = time;
-			((MIDletTimerTask) task).period = period;
-			tasks.add(task);
-			tasks.notify();
+	private static void checkDelay(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Negative delay.");
+		}
+	}
+
+	private static void checkPeriod(long period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("Non-positive period.");
+		}
+	}
+
+	private void sched(TimerTask timerTask, long time, long period) {
+		if (time < 0) {
+			throw new IllegalArgumentException("Illegal execution time.");
+		}
+		MIDletTimerTask task = (MIDletTimerTask) timerTask;
+		synchronized (queue) {
+			if (cancelled) {
+				throw new IllegalStateException("Timer already cancelled.");
+			}
+			if (task.state != MIDletTimerTask.VIRGIN) {
+				throw new IllegalStateException("Task already scheduled or cancelled");
+			}
+			task.timer = this;
+			task.time = time;
+			task.period = period;
+			task.state = MIDletTimerTask.SCHEDULED;
+			queue.add(task);
+			scheduleWakeUp();
 		}
 	}
 
@@ -203,14 +263,16 @@ public class MIDletTimer extends Timer implements Runnable {
 			Logger.error("Creating Timer with no MIDlet context", new Throwable());
 			return;
 		}
-		Map timers = (Map) midlets.get(timer.midletContext);
-		if (timers == null) {
-			// Can't use WeakHashMap Timers are disposed by JVM
-			timers = new HashMap();
-			midlets.put(timer.midletContext, timers);
+		synchronized (midlets) {
+			Map timers = (Map) midlets.get(timer.midletContext);
+			if (timers == null) {
+				// Can't use WeakHashMap Timers are disposed by JVM
+				timers = new HashMap();
+				midlets.put(timer.midletContext, timers);
+			}
+			// Logger.debug("Register timer created from [" + timer.name + "]");
+			timers.put(timer, timer.midletContext);
 		}
-		// Logger.debug("Register timer created from [" + timer.name + "]");
-		timers.put(timer, timer.midletContext);
 	}
 
 	private static void unregister(MIDletTimer timer) {
@@ -218,12 +280,85 @@ public class MIDletTimer extends Timer implements Runnable {
 			// Logger.error("Timer with no MIDlet context", new Throwable());
 			return;
 		}
-		Map timers = (Map) midlets.get(timer.midletContext);
-		if (timers == null) {
-			return;
+		synchronized (midlets) {
+			Map timers = (Map) midlets.get(timer.midletContext);
+			if (timers == null) {
+				return;
+			}
+			// Logger.debug("Unregister timer created from [" + timer.name + "]");
+			timers.remove(timer);
 		}
-		// Logger.debug("Unregister timer created from [" + timer.name + "]");
-		timers.remove(timer);
+	}
+
+	/**
+	 * Run due tasks of the timer with the earliest task, first created on equal times. Called by SimulationDriver for
+	 * timers using manual clock.
+	 * 
+	 * @return <code>false</code> if no task is due
+	 */
+	static boolean runNextTimer(EmulatorClock clock) {
+		MIDletTimer next = null;
+		long nextTime = clock.getTime();
+		List timers = getTimers(clock);
+		for (Iterator iter = timers.iterator(); iter.hasNext();) {
+			MIDletTimer tm = (MIDletTimer) iter.next();
+			long time = tm.getFirstTaskTime();
+			if (time > nextTime) {
+				continue;
+			}
+			if ((next == null) || (time < nextTime) || (tm.sequence < next.sequence)) {
+				next = tm;
+				nextTime = time;
+			}
+		}
+		if (next == null) {
+			return false;
+		}
+		MIDletBridge.setThreadMIDletContext(next.midletContext);
+		try {
+			next.run();
+		} finally {
+			MIDletBridge.setThreadMIDletContext(null);
+		}
+		return true;
+	}
+
+	/**
+	 * @return time of the earliest task of timers using clock or <code>Long.MAX_VALUE</code>
+	 */
+	static long getNextTaskTime(EmulatorClock clock) {
+		long next = Long.MAX_VALUE;
+		List timers = getTimers(clock);
+		for (Iterator iter = timers.iterator(); iter.hasNext();) {
+			next = Math.min(next, ((MIDletTimer) iter.next()).getFirstTaskTime());
+		}
+		return next;
+	}
+
+	private long getFirstTaskTime() {
+		synchronized (queue) {
+			MIDletTimerTask task = queue.getMin();
+			if ((task == null) || cancelled || running) {
+				return Long.MAX_VALUE;
+			}
+			return task.time;
+		}
+	}
+
+	private static List getTimers(EmulatorClock clock) {
+		List list = new ArrayList();
+		synchronized (midlets) {
+			for (Iterator iter = midlets.values().iterator(); iter.hasNext();) {
+				Map timers = (Map) iter.next();
+				for (Iterator ti = timers.keySet().iterator(); ti.hasNext();) {
+					MIDletTimer tm = (MIDletTimer) ti.next();
+					if (tm.clock == clock) {
+						list.add(tm);
+					}
+				}
+			}
+		}
+		return list;
 	}
 
 	/**
@@ -233,10 +368,12 @@ public class MIDletTimer extends Timer implements Runnable {
 		if (midletContext == null) {
 			return;
 		}
-		Map timers = (Map) midlets.get(midletContext);
+		Map timers;
+		synchronized (midlets) {
+			timers = (Map) midlets.remove(midletContext);
+		}
 		if (timers != null) {
 			terminateTimers(timers);
-			midlets.remove(midletContext);
 		}
 	}
 
@@ -0,0 +1,146 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2006-2009 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.app.util;
+
+/**
+ * Binary min-heap of MIDletTimerTasks ordered by next execution time. Each task knows its position in the heap, so
+ * insert, remove and reschedule of any task are O(log n). Not synchronized, MIDletTimer guards it.
+ */
+class MIDletTimerQueue {
+
+	private MIDletTimerTask[] heap = new MIDletTimerTask[16];
+
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return (size == 0);
+	}
+
+	void add(MIDletTimerTask task) {
+		if (size == heap.length) {
+			MIDletTimerTask[] newHeap = new MIDletTimerTask[heap.length * 2];
+			System.arraycopy(heap, 0, newHeap, 0, size);
+			heap = newHeap;
+		}
+		heap[size] = task;
+		task.heapIndex = size;
+		size++;
+		siftUp(task.heapIndex);
+	}
+
+	/**
+	 * @return task with earliest execution time or <code>null</code>
+	 */
+	MIDletTimerTask getMin() {
+		return (size == 0) ? null : heap[0];
+	}
+
+	/**
+	 * @return <code>false</code> if task was not in this queue
+	 */
+	boolean remove(MIDletTimerTask task) {
+		int i = task.heapIndex;
+		if ((i < 0) || (i >= size) || (heap[i] != task)) {
+			return false;
+		}
+		size--;
+		MIDletTimerTask last = heap[size];
+		heap[size] = null;
+		task.heapIndex = -1;
+		if (i != size) {
+			heap[i] = last;
+			last.heapIndex = i;
+			siftDown(i);
+			if (heap[i] == last) {
+				siftUp(i);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Move task to its new position after its execution time changed
+	 */
+	void reschedule(MIDletTimerTask task, long time) {
+		long old = task.time;
+		task.time = time;
+		if (time < old) {
+			siftUp(task.heapIndex);
+		} else {
+			siftDown(task.heapIndex);
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			heap[i].heapIndex = -1;
+			heap[i] = null;
+		}
+		size = 0;
+	}
+
+	private void siftUp(int i) {
+		MIDletTimerTask task = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			MIDletTimerTask p = heap[parent];
+			if (p.time <= task.time) {
+				break;
+			}
+			heap[i] = p;
+			p.heapIndex = i;
+			i = parent;
+		}
+		heap[i] = task;
+		task.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+		MIDletTimerTask task = heap[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			MIDletTimerTask c = heap[child];
+			int right = child + 1;
+			if ((right < size) && (heap[right].time < c.time)) {
+				child = right;
+				c = heap[child];
+			}
+			if (task.time <= c.time) {
+				break;
+			}
+			heap[i] = c;
+			c.heapIndex = i;
+			i = child;
+		}
+		heap[i] = task;
+		task.heapIndex = i;
+	}
+
+}
@@ -30,36 +30,53 @@ import java.util.TimerTask;
 
 public abstract class MIDletTimerTask extends TimerTask {
 	
-	MIDletTimer timer;
+	static final int VIRGIN = 0;
+
+	static final int SCHEDULED = 1;
+
+	static final int EXECUTED = 2;
+
+	static final int CANCELLED = 3;
+
+	volatile MIDletTimer timer;
+
+	int state = VIRGIN;
 
 	long time = -1;
 	
+	/**
+	 * As in java.util.Timer: positive for fixed-rate, negative for fixed-delay and 0 for one-time execution
+	 */
 	long period;
 	
-	boolean oneTimeTaskExcecuted = false;
-	
+	// Position in MIDletTimerQueue, -1 when not queued
+	int heapIndex = -1;
+
 	public boolean cancel() {
-		if (timer == null) {
+		MIDletTimer t = timer;
+		if (t == null) {
+			// task was never scheduled
+			state = CANCELLED;
 			return false;
 		}
 		
-		synchronized (timer.tasks) {
-			// task was never scheduled
-			if (time == -1) {
-				return false;
-			}		
-			// task was scheduled for one-time execution and has already run
-			if (oneTimeTaskExcecuted) {
-				return false;
-			}
-			timer.tasks.remove(this);
+		synchronized (t.queue) {
+			// one-time task that has already run or task that was already cancelled
+			boolean result = (state == SCHEDULED);
+			state = CANCELLED;
+			t.queue.remove(this);
+			return result;
 		}
-
-		return true;
 	}
 
 	public long scheduledExecutionTime() {
-		return time;
+		MIDletTimer t = timer;
+		if (t == null) {
+			return time;
+		}
+		synchronized (t.queue) {
+			return (period < 0) ? time + period : time - period;
+		}
 	}
 
 }
@@ -0,0 +1,308 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.app.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.microemu.DisplayAccess;
+import org.microemu.EmulatorClock;
+import org.microemu.EmulatorInstance;
+import org.microemu.MIDletAccess;
+import org.microemu.MIDletBridge;
+import org.microemu.log.Logger;
+
+/**
+ * Deterministic run mode. The driver moves manual EmulatorClock of one instance in fixed ticks. After each tick it
+ * runs due MIDletTimer tasks, Display ticker, alert and input method tasks of the clock and wakes MIDlet threads
+ * whose sleep or wait ended, one at a time in order of their deadline. After each of them it waits until EventDispatcher ran all queued events and all MIDlet threads sleep or
+ * wait again. A started MIDlet thread runs alone until it waits, then the thread that started it continues. So MIDlet
+ * threads take turns in the same order on every run regardless of host scheduling.
+ *
+ * When nothing is due before a later tick, the driver jumps to that tick without waiting, so idle periods take no
+ * wall time.
+ *
+ * Threads that block in I/O or spin hold the tick until {@link #settleTimeout} elapses. Threads other than MIDlet
+ * threads, e.g. the one calling startApp(), take part when {@link #attach(Thread)} is used, the driver waits for
+ * them without limit.
+ *
+ * Usage: new SimulationDriver(instance, 20).start();
+ */
+public class SimulationDriver implements Runnable {
+
+	/**
+	 * Tick length in MIDlet milliseconds used by --simulation, 0 when the mode is off
+	 */
+	public static long defaultTick = 0;
+
+	/**
+	 * MIDlet time the manual clock starts from with --simulation, -1 for current time. Fixed value makes runs
+	 * reproducible.
+	 */
+	public static long defaultStartTime = -1;
+
+	/**
+	 * Wall clock milliseconds a tick waits for MIDlet threads and events
+	 */
+	public static long settleTimeout = 1000;
+
+	private final EmulatorInstance instance;
+
+	private final EmulatorClock clock;
+
+	private final long tick;
+
+	private boolean skipIdle = true;
+
+	private long tickCount = 0;
+
+	private volatile boolean stopped = false;
+
+	private Thread thread;
+
+	private final List /* <Thread> */attached = new ArrayList();
+
+	/**
+	 * @param instance
+	 *            instance with manual clock, see {@link EmulatorClock#setManual(long)}
+	 * @param tick
+	 *            MIDlet milliseconds per tick
+	 */
+	public SimulationDriver(EmulatorInstance instance, long tick) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick " + tick);
+		}
+		if (!instance.getClock().isManual()) {
+			throw new IllegalStateException("clock is not manual");
+		}
+		this.instance = instance;
+		this.clock = instance.getClock();
+		this.tick = tick;
+	}
+
+	public void setSkipIdle(boolean skipIdle) {
+		this.skipIdle = skipIdle;
+	}
+
+	/**
+	 * @return ticks run so far, idle ticks skipped included
+	 */
+	public long getTickCount() {
+		return tickCount;
+	}
+
+	/**
+	 * Wait for the thread like for MIDlet threads of the instance
+	 */
+	public void attach(Thread thread) {
+		synchronized (attached) {
+			attached.add(thread);
+		}
+	}
+
+	public void detach(Thread thread) {
+		synchronized (attached) {
+			attached.remove(thread);
+		}
+	}
+
+	/**
+	 * Run ticks in own thread until {@link #stop()}
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException();
+		}
+		thread = new Thread(this, "SimulationDriver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		stopped = true;
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	public void run() {
+		EmulatorInstance.setThreadInstance(instance);
+		try {
+			while (!stopped) {
+				if (!skipIdle()) {
+					if (isIdle() && (nextDueTime() == Long.MAX_VALUE)) {
+						// Nothing to wake, wait for input from outside
+						LockSupport.parkNanos(this, tick * 1000000L);
+					}
+					step();
+				}
+			}
+		} catch (Throwable e) {
+			Logger.error("SimulationDriver", e);
+		} finally {
+			EmulatorInstance.setThreadInstance(null);
+		}
+	}
+
+	/**
+	 * Run one tick
+	 */
+	public void step() {
+		EmulatorInstance previous = EmulatorInstance.getInstance();
+		EmulatorInstance.setThreadInstance(instance);
+		try {
+			runDue();
+			clock.advance(tick);
+			tickCount++;
+			runDue();
+		} finally {
+			EmulatorInstance.setThreadInstance(previous);
+		}
+	}
+
+	/**
+	 * Run due timers and wake due threads one at a time, each runs until MIDlet threads are idle again. MIDletTimer
+	 * tasks go before Display and input method tasks of the clock, both go before threads with equal time.
+	 */
+	private void runDue() {
+		settle();
+		while (true) {
+			long now = clock.getTime();
+			long timerTime = MIDletTimer.getNextTaskTime(clock);
+			long taskTime = clock.getNextTaskTime();
+			long deadline = clock.getNextDeadline();
+			if ((timerTime <= now) && (timerTime <= taskTime) && (timerTime <= deadline)) {
+				MIDletTimer.runNextTimer(clock);
+			} else if ((taskTime <= now) && (taskTime <= deadline)) {
+				clock.runNextTask();
+			} else if (!clock.wakeNext()) {
+				return;
+			}
+			settle();
+		}
+	}
+
+	/**
+	 * Run ticks covering <code>millis</code> of MIDlet time
+	 */
+	public void fastForward(long millis) {
+		long end = clock.getTime() + millis;
+		while (clock.getTime() < end) {
+			if (!skipIdle()) {
+				step();
+			}
+		}
+	}
+
+	/**
+	 * Jump over ticks where no sleep, wait or timer task is due
+	 *
+	 * @return <code>true</code> if ticks were skipped
+	 */
+	private boolean skipIdle() {
+		if (!skipIdle) {
+			return false;
+		}
+		settle();
+		long next = nextDueTime();
+		if (next == Long.MAX_VALUE) {
+			return false;
+		}
+		long ticks = (next - clock.getTime() - 1) / tick;
+		if ((ticks <= 0) || !isIdle()) {
+			return false;
+		}
+		clock.advance(ticks * tick);
+		tickCount += ticks;
+		return true;
+	}
+
+	private long nextDueTime() {
+		return Math.min(clock.getNextDeadline(), Math.min(MIDletTimer.getNextTaskTime(clock), clock.getNextTaskTime()));
+	}
+
+	private boolean isIdle() {
+		return !hasRunnableAttached() && !MIDletThread.hasRunnableThreads(instance) && awaitEvents(0);
+	}
+
+	private boolean hasRunnableAttached() {
+		synchronized (attached) {
+			for (Iterator iter = attached.iterator(); iter.hasNext();) {
+				Thread t = (Thread) iter.next();
+				if (!t.isAlive() || clock.isWaiting(t)) {
+					continue;
+				}
+				Thread.State state = t.getState();
+				if ((state == Thread.State.RUNNABLE) || (state == Thread.State.BLOCKED)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until MIDlet threads are idle and events are dispatched, at most settleTimeout. Attached threads are
+	 * waited for without limit.
+	 */
+	private void settle() {
+		long deadline = System.currentTimeMillis() + settleTimeout;
+		boolean timeout = false;
+		while (!stopped) {
+			if (hasRunnableAttached()) {
+				LockSupport.parkNanos(this, 50000L);
+				continue;
+			}
+			if (timeout || (!MIDletThread.hasRunnableThreads(instance) && awaitEvents(0)
+					&& !MIDletThread.hasRunnableThreads(instance))) {
+				return;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				Logger.debug("SimulationDriver tick " + tickCount + " not settled");
+				timeout = true;
+				continue;
+			}
+			awaitEvents(remaining);
+			LockSupport.parkNanos(this, 50000L);
+		}
+	}
+
+	private boolean awaitEvents(long timeout) {
+		MIDletAccess ma = MIDletBridge.getMIDletAccess();
+		if (ma == null) {
+			return true;
+		}
+		DisplayAccess da = ma.getDisplayAccess();
+		if (da == null) {
+			return true;
+		}
+		return da.awaitEvents(timeout);
+	}
+
+}
@@ -26,6 +26,8 @@ package org.microemu.device.impl;
 
 import javax.microedition.lcdui.TextField;
 
+import org.microemu.EmulatorClock;
+import org.microemu.EmulatorScheduler;
 import org.microemu.MIDletBridge;
 import org.microemu.device.DeviceFactory;
 import org.microemu.device.InputMethod;
@@ -34,55 +36,73 @@ import org.microemu.device.InputMethodListener;
 
 public abstract class InputMethodImpl extends InputMethod implements Runnable {
 
-	protected boolean resetKey;
-	
+	// Time without key press after which caret moves past multi-tap character
+	private static final int CARET_TIMEOUT = 1500;
+
 	protected Button lastButton;
 	
 	protected int lastButtonCharIndex;
 
 	private boolean cancel;
 	
-	private Thread t;
+	// Increased on each key press, older caret timeouts are ignored
+	private int caretGeneration;
+
+	private EmulatorScheduler.Task caretTask;
 
 	public InputMethodImpl() {
 		this.lastButton = null;
 		this.lastButtonCharIndex = -1;
 		
 		this.cancel = false;
-		this.t = new Thread(this, "InputMethodThread");
-		this.t.setDaemon(true);
-		this.t.start();
 	}
 
 	// TODO to be removed when event dispatcher will run input method task
 	public void dispose() {
-		cancel = true;
 		synchronized (this) {
-			notify();
+			cancel = true;
+			if (caretTask != null) {
+				caretTask.cancel();
+				caretTask = null;
+			}
 		}
 	}
 
+	/**
+	 * Start caret timeout again after key press, called with lock on this
+	 */
+	protected void restartCaretTimer() {
+		if (cancel) {
+			return;
+		}
+		final int generation = ++caretGeneration;
+		if (caretTask != null) {
+			caretTask.cancel();
+		}
+		caretTask = EmulatorClock.getClock().schedule(new Runnable() {
+			public void run() {
+				synchronized (InputMethodImpl.this) {
+					if (generation == caretGeneration) {
+						InputMethodImpl.this.run();
+					}
+				}
+			}
+		}, CARET_TIMEOUT);
+	}
+
 	// Runnable
 	public void run() 
 	{
-		while (!cancel) {
-			try {
-				resetKey = true;
-				synchronized (this) {
-					wait(1500);
-				}
-			} catch (InterruptedException ex) {
-			}
-			synchronized (this) {
-				if (resetKey && lastButton != null && inputMethodListener != null) {
-					int caret = inputMethodListener.getCaretPosition() + 1;
-                    if (caret <= inputMethodListener.getText().length()) {
-    					lastButton = null;
-    					lastButtonCharIndex = -1;
-						InputMethodEvent event = new InputMethodEvent(InputMethodEvent.CARET_POSITION_CHANGED, caret, inputMethodListener.getText());
-						inputMethodListener.caretPositionChanged(event);
-                    }
-				}
+		synchronized (this) {
+			caretTask = null;
+			if (lastButton != null && inputMethodListener != null) {
+				int caret = inputMethodListener.getCaretPosition() + 1;
+                if (caret <= inputMethodListener.getText().length()) {
+					lastButton = null;
+					lastButtonCharIndex = -1;
+					InputMethodEvent event = new InputMethodEvent(InputMethodEvent.CARET_POSITION_CHANGED, caret, inputMethodListener.getText());
+					inputMethodListener.caretPositionChanged(event);
+                }
 			}
 		}
 	}
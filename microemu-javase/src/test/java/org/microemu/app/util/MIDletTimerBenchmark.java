@@ -0,0 +1,138 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.app.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares MIDletTimer task queue operations: unsorted ArrayList scanned for the next task used before and
+ * MIDletTimerQueue binary heap. Each round schedules a task, cancels a random pending task and takes the next task
+ * to run, with constant number of pending tasks.
+ *
+ * Usage: java -cp microemulator.jar:target/test-classes org.microemu.app.util.MIDletTimerBenchmark [rounds]
+ */
+public class MIDletTimerBenchmark {
+
+	private static final int[] PENDING = { 10, 1000, 100000 };
+
+	private static long sink;
+
+	private static class Task extends MIDletTimerTask {
+
+		public void run() {
+		}
+
+	}
+
+	public static void main(String[] args) {
+		int rounds = 20000;
+		if (args.length > 0) {
+			rounds = Integer.parseInt(args[0]);
+		}
+
+		// Warm up both implementations
+		runList(1000, rounds, 1);
+		runQueue(1000, rounds, 1);
+
+		for (int i = 0; i < PENDING.length; i++) {
+			int pending = PENDING[i];
+			report("ArrayList", pending, rounds, false);
+			report("MIDletTimerQueue", pending, rounds, true);
+		}
+	}
+
+	private static void report(String name, int pending, int rounds, boolean queue) {
+		System.gc();
+		long start = System.nanoTime();
+		if (queue) {
+			runQueue(pending, rounds, 2);
+		} else {
+			runList(pending, rounds, 2);
+		}
+		long time = System.nanoTime() - start;
+		System.out.println(name + ": " + pending + " pending tasks, " + rounds + " rounds, " + (time / 1000000)
+				+ " ms, " + (time / rounds) + " ns/round");
+	}
+
+	private static Task[] createTasks(int pending, long seed) {
+		Random random = new Random(seed);
+		Task[] tasks = new Task[pending];
+		for (int i = 0; i < pending; i++) {
+			tasks[i] = new Task();
+			tasks[i].time = random.nextInt(1000000);
+		}
+		return tasks;
+	}
+
+	private static void runList(int pending, int rounds, long seed) {
+		Task[] tasks = createTasks(pending, seed);
+		List list = new ArrayList();
+		for (int i = 0; i < pending; i++) {
+			list.add(tasks[i]);
+		}
+		Random random = new Random(seed);
+		for (int r = 0; r < rounds; r++) {
+			// schedule
+			Task task = new Task();
+			task.time = random.nextInt(1000000);
+			list.add(task);
+			// cancel
+			int cancel = random.nextInt(pending);
+			list.remove(tasks[cancel]);
+			tasks[cancel] = task;
+			// find next task to run, as MIDletTimer.run() did
+			MIDletTimerTask next = null;
+			for (Iterator it = list.iterator(); it.hasNext();) {
+				MIDletTimerTask candidate = (MIDletTimerTask) it.next();
+				if ((next == null) || (candidate.time < next.time)) {
+					next = candidate;
+				}
+			}
+			sink += next.time;
+		}
+	}
+
+	private static void runQueue(int pending, int rounds, long seed) {
+		Task[] tasks = createTasks(pending, seed);
+		MIDletTimerQueue queue = new MIDletTimerQueue();
+		for (int i = 0; i < pending; i++) {
+			queue.add(tasks[i]);
+		}
+		Random random = new Random(seed);
+		for (int r = 0; r < rounds; r++) {
+			Task task = new Task();
+			task.time = random.nextInt(1000000);
+			queue.add(task);
+			int cancel = random.nextInt(pending);
+			queue.remove(tasks[cancel]);
+			tasks[cancel] = task;
+			sink += queue.getMin().time;
+		}
+	}
+
+}
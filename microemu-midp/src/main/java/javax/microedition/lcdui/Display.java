@@ -30,13 +30,12 @@
  */
 package javax.microedition.lcdui;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import javax.microedition.lcdui.game.GameCanvas;
 import javax.microedition.midlet.MIDlet;
 
 import org.microemu.DisplayAccess;
+import org.microemu.EmulatorClock;
+import org.microemu.EmulatorScheduler;
 import org.microemu.GameCanvasKeyAccess;
 import org.microemu.MIDletBridge;
 import org.microemu.device.DeviceFactory;
@@ -334,6 +333,14 @@ public class Display {
 			getDisplay().serviceRepaints();
 		}
 
+		public void render() {
+			eventDispatcher.render();
+		}
+
+		public boolean awaitEvents(long timeout) {
+			return eventDispatcher.awaitIdle(timeout);
+		}
+
 		public void setCurrent(Displayable d) {
 			getDisplay().setCurrent(d);
 		}
@@ -362,25 +369,14 @@ public class Display {
 				current.hideNotify();
 			}
 			eventDispatcher.cancel();
-			timer.cancel();
+			tickerPaintTask.cancel();
+			gaugePaintTask.cancel();
 		}
 	}
 
 	private class AlertTimeout implements Runnable {
 
-		int time;
-
-		AlertTimeout(int time) {
-			this.time = time;
-		}
-
 		public void run() {
-			try {
-				Thread.sleep(time);
-			} catch (InterruptedException ex) {
-				ex.printStackTrace();
-			}
-
 			Displayable d = current;
 			if (d != null && d instanceof Alert) {
 				Alert alert = (Alert) d;
@@ -391,16 +387,18 @@ public class Display {
 		}
 	}
 
-	private final Timer timer = new Timer();
+	private final EmulatorScheduler.Task tickerPaintTask;
+
+	private final EmulatorScheduler.Task gaugePaintTask;
 
 	/**
-	 * Wrap any runnable as a timertask so that when the timer gets fired, the
-	 * runnable gets run
+	 * Wrap any runnable so that when the scheduler fires it, the runnable
+	 * gets run in event thread
 	 * 
 	 * @author radoshi
 	 * 
 	 */
-	private final class RunnableWrapper extends TimerTask {
+	private final class RunnableWrapper implements Runnable {
 
 		private final Runnable runnable;
 
@@ -419,8 +417,11 @@ public class Display {
 
 		eventDispatcher = DeviceFactory.getDevice().getUIFactory().createEventDispatcher(this);
 
-		timer.scheduleAtFixedRate(new RunnableWrapper(new TickerPaintTask()), 0, Ticker.PAINT_TIMEOUT);
-		timer.scheduleAtFixedRate(new RunnableWrapper(new GaugePaintTask()), 0, Ticker.PAINT_TIMEOUT);
+		EmulatorClock clock = EmulatorClock.getClock();
+		tickerPaintTask = clock.scheduleAtFixedRate(new RunnableWrapper(new TickerPaintTask()), 0,
+				Ticker.PAINT_TIMEOUT);
+		gaugePaintTask = clock.scheduleAtFixedRate(new RunnableWrapper(new GaugePaintTask()), 0,
+				Ticker.PAINT_TIMEOUT);
 	}
 
 	public void callSerially(Runnable runnable) {
@@ -543,9 +544,7 @@ public class Display {
 		current.repaint();
 
 		if (alert.getTimeout() != Alert.FOREVER) {
-			AlertTimeout at = new AlertTimeout(alert.getTimeout());
-			Thread t = new Thread(at);
-			t.start();
+			EmulatorClock.getClock().schedule(new AlertTimeout(), alert.getTimeout());
 		}
 	}
 
@@ -590,16 +589,10 @@ public class Display {
 
 	void serviceRepaints() {
 		//
-		// If service repaints is being called from the event thread, then we
-		// just execute an immediate repaint and call it a day. If it is being
-		// called from another thread, then we setup a repaint barrier and wait
-		// for that barrier to execute
+		// Pending repaint is painted ahead of other queued events. If service
+		// repaints is being called from the event thread, then it is painted
+		// immediately, otherwise we wait for the event thread to paint it
 		//
-		if (EventDispatcher.EVENT_DISPATCHER_NAME.equals(Thread.currentThread().getName())) {
-			DeviceFactory.getDevice().getDeviceDisplay().repaint(0, 0, current.getWidth(), current.getHeight());
-			return;
-		}
-
 		eventDispatcher.serviceRepaints();
 	}
 
@@ -56,6 +56,9 @@ public abstract class GameCanvas extends Canvas {
     private int actualKeyState;
     
     Image offscreenBuffer;
+
+    // Boolean.TRUE if subclass paints something else than offscreenBuffer, computed on first use
+    private Boolean paintOverridden;
     
     private class KeyAccess implements GameCanvasKeyAccess 
     {
@@ -81,6 +84,23 @@ public abstract class GameCanvas extends Canvas {
         public void initBuffer() {
             offscreenBuffer = Image.createImage(getWidth(), getHeight());
         }
+
+        public Image getFrameBuffer(GameCanvas canvas) {
+            if (canvas.paintOverridden == null) {
+                boolean overridden = true;
+                try {
+                    overridden = (canvas.getClass().getMethod("paint", new Class[] { Graphics.class })
+                            .getDeclaringClass() != GameCanvas.class);
+                } catch (NoSuchMethodException e) {
+                } catch (SecurityException e) {
+                }
+                canvas.paintOverridden = overridden ? Boolean.TRUE : Boolean.FALSE;
+            }
+            if (canvas.paintOverridden.booleanValue()) {
+                return null;
+            }
+            return canvas.offscreenBuffer;
+        }
     }
     
     /** Creates a new instance of GameCanvas */
@@ -57,6 +57,25 @@ public class TiledLayer extends Layer {
     int []animatedTiles;
     // the ammount of animated tiles
     int numAnimatedTiles;
+    // number of cells using each animated tile, same indexing as animatedTiles
+    private int []animatedCellCounts;
+
+    // Maximum size in pixels of cached backing image, 0 disables the cache
+    static int backingImageMaxPixels = Integer.getInteger("microemu.tiledLayer.backingImageMaxPixels", 1024 * 1024)
+            .intValue();
+
+    // Static cells pre-painted, used only when tile set is opaque and immutable
+    // and there are no empty cells, animated ones included, so the layer covers everything under it
+    private Image backingImage;
+
+    private boolean[] dirtyCells;
+
+    private int numDirtyCells;
+
+    private int numEmptyCells;
+
+    // 0 not checked, 1 opaque, -1 has transparent pixels
+    private int tileSetOpaque;
     
     public TiledLayer(int cols, int rows, Image img, int tileWidth, int tileHeight) {
         // the specification doesn't states if the TiledLayer is visible on creation
@@ -78,7 +97,9 @@ public class TiledLayer extends Layer {
         this.numStaticTiles = (img.getWidth() / tileWidth) * (img.getHeight() / tileHeight);
         this.tiles = new int[rows][cols];
         this.animatedTiles = new int[5];
+        this.animatedCellCounts = new int[5];
         this.numAnimatedTiles = 0;
+        this.numEmptyCells = rows * cols;
     }
     
     // it is synchronized to avoid problems with the animatedTiles array and count
@@ -91,6 +112,9 @@ public class TiledLayer extends Layer {
 	            int [] temp = new int [numAnimatedTiles + 6];
 	            System.arraycopy(animatedTiles, 0, temp, 0, numAnimatedTiles);
 	            animatedTiles = temp;
+	            temp = new int [numAnimatedTiles + 6];
+	            System.arraycopy(animatedCellCounts, 0, temp, 0, numAnimatedTiles);
+	            animatedCellCounts = temp;
 	        }
 	        
 	        animatedTiles[numAnimatedTiles] = staticTileIndex; 
@@ -128,7 +152,7 @@ public class TiledLayer extends Layer {
     	synchronized (this) {
 	        if (-index-1 >= numAnimatedTiles || index > numStaticTiles)
 	            throw new IndexOutOfBoundsException();
-	        tiles[row][col] = index;
+	        updateCell(col, row, index);
     	}
     }
     
@@ -154,6 +178,8 @@ public class TiledLayer extends Layer {
 	        this.img = img;
 	        this.tileWidth = tileWidth;
 	        this.tileHeight = tileHeight;
+	        this.backingImage = null;
+	        this.tileSetOpaque = 0;
 	        
 	        if (newNumStaticTiles >= numStaticTiles) {
 	            this.numStaticTiles = newNumStaticTiles;
@@ -167,6 +193,7 @@ public class TiledLayer extends Layer {
 	        this.animatedTiles = new int[5];
 	        this.numAnimatedTiles = 0;
 	        this.fillCells(0, 0, getColumns(), getRows(), 0);
+	        this.animatedCellCounts = new int[5];
     	}
     }
 
@@ -183,7 +210,7 @@ public class TiledLayer extends Layer {
 	        int cMax = col + numCols;
 	        for (int r = row; r < rMax; r++) {
 	            for (int c = col; c < cMax; c++) {
-	                tiles[r][c] = index; 
+	                updateCell(c, r, index);
 	            }
 	        }
     	}
@@ -209,6 +236,112 @@ public class TiledLayer extends Layer {
         return tileHeight;
     }
     
+    private void updateCell(int col, int row, int index) {
+        int old = tiles[row][col];
+        if (old == index) {
+            return;
+        }
+        tiles[row][col] = index;
+        if (old == 0) {
+            numEmptyCells--;
+        } else if (index == 0) {
+            numEmptyCells++;
+        }
+        if (old < 0) {
+            animatedCellCounts[-old - 1]--;
+        }
+        if (index < 0) {
+            animatedCellCounts[-index - 1]++;
+        }
+        if (backingImage != null) {
+            int i = row * cols + col;
+            if (!dirtyCells[i]) {
+                dirtyCells[i] = true;
+                numDirtyCells++;
+            }
+        }
+    }
+
+    private boolean isBackingImageUsable() {
+        if (numEmptyCells != 0 || img.isMutable()) {
+            return false;
+        }
+        // animated cell showing tile 0 is transparent, backing image would show its fill there
+        for (int i = 0; i < numAnimatedTiles; i++) {
+            if (animatedTiles[i] == 0 && animatedCellCounts[i] > 0) {
+                return false;
+            }
+        }
+        if ((long) cols * tileWidth * rows * tileHeight > backingImageMaxPixels) {
+            return false;
+        }
+        if (tileSetOpaque == 0) {
+            int w = img.getWidth();
+            int[] line = new int[w];
+            tileSetOpaque = 1;
+            for (int y = 0; y < img.getHeight() && tileSetOpaque == 1; y++) {
+                img.getRGB(line, 0, w, 0, y, w, 1);
+                for (int x = 0; x < w; x++) {
+                    if ((line[x] & 0xff000000) != 0xff000000) {
+                        tileSetOpaque = -1;
+                        break;
+                    }
+                }
+            }
+        }
+        return tileSetOpaque == 1;
+    }
+
+    private void paintCell(Graphics g, int c, int r, int x, int y, boolean animated) {
+        int tile = tiles[r][c];
+        if (tile < 0) {
+            if (!animated)
+                return;
+            tile = animatedTiles[-tile - 1];
+        } else if (animated) {
+            return;
+        }
+        if (tile == 0)
+            return;
+
+        tile--;
+
+        int imgCols = img.getWidth() / tileWidth;
+        int xSrc = tileWidth * (tile % imgCols);
+        int ySrc = (tile / imgCols) * tileHeight;
+
+        g.drawRegion(img, xSrc, ySrc, tileWidth, tileHeight, Sprite.TRANS_NONE, x, y, Graphics.LEFT | Graphics.TOP);
+    }
+
+    private void updateBackingImage() {
+        Graphics bg;
+        if (backingImage == null) {
+            backingImage = Image.createImage(cols * tileWidth, rows * tileHeight);
+            dirtyCells = new boolean[rows * cols];
+            numDirtyCells = 0;
+            bg = backingImage.getGraphics();
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    paintCell(bg, c, r, c * tileWidth, r * tileHeight, false);
+                }
+            }
+            return;
+        }
+        if (numDirtyCells == 0) {
+            return;
+        }
+        bg = backingImage.getGraphics();
+        for (int i = 0; i < dirtyCells.length; i++) {
+            if (dirtyCells[i]) {
+                dirtyCells[i] = false;
+                int r = i / cols;
+                int c = i % cols;
+                paintCell(bg, c, r, c * tileWidth, r * tileHeight, false);
+            }
+        }
+        numDirtyCells = 0;
+    }
+
     public final void paint(Graphics g) {
     	synchronized (this) {
 	        if (!this.isVisible())
@@ -217,11 +350,6 @@ public class TiledLayer extends Layer {
 	        int x = getX();
 	        int y = getY();
 	
-	        int c0 = 0;
-	        int r0 = 0;
-	        int cMax = getColumns();
-	        int rMax = getRows();
-	        
 	        int tW = getCellWidth();
 	        int tH = getCellHeight();
 	        
@@ -231,47 +359,42 @@ public class TiledLayer extends Layer {
 	        int cH = g.getClipHeight();
 	        
 	        // take out the columns and rows that are outside of
-	        // the clip area, this should speed things up a bit
-/*	        
-	        int diff = cX - x;
-	        if (diff > 0)
-	            c0 += diff / tW;
-	        
-	        diff = cX + cW - (x + cMax*tW);
-	        if (diff > 0)
-	            cMax -= diff / tW;
-	
-	        diff = cY - y;
-	        if (diff > 0)
-	            r0 += diff / tH;
-	        
-	        diff = cY + cH - (x + rMax*tH);
-	        if (diff > 0)
-	            rMax -= diff / tH;
-*/	        
-	        int x0 = x;
-	        int anchor = Graphics.LEFT | Graphics.TOP;
-	        
-	        int imgCols = img.getWidth() / tW;
-	        int imgRows = img.getHeight() / tH;
-	                
-	        for (int r = r0; r < rMax; r++, y += tH) {
-	            x = x0;
-	            for (int c = c0; c < cMax; c++, x += tW) {
-	                int tile = getCell(c, r);
-	                if (tile < 0)
-	                    tile = getAnimatedTile(tile);
-	                if (tile == 0)
-	                    continue;
-	                
-	                tile--;
-	                
-	                int xSrc = tW * (tile % imgCols);
-	                int ySrc = (tile / imgCols) * tH;
-	                
-	                g.drawRegion(img, xSrc, ySrc, tW, tH, Sprite.TRANS_NONE, x, y, anchor);
+	        // the clip area
+	        int c0 = Math.max(0, floorDiv(cX - x, tW));
+	        int r0 = Math.max(0, floorDiv(cY - y, tH));
+	        int cMax = Math.min(getColumns(), floorDiv(cX + cW - x + tW - 1, tW));
+	        int rMax = Math.min(getRows(), floorDiv(cY + cH - y + tH - 1, tH));
+	        if (c0 >= cMax || r0 >= rMax)
+	            return;
+
+	        boolean backing = (backingImageMaxPixels > 0) && isBackingImageUsable();
+	        if (backing) {
+	            updateBackingImage();
+	            g.drawImage(backingImage, x, y, Graphics.LEFT | Graphics.TOP);
+	            if (numAnimatedTiles == 0)
+	                return;
+	        }
+
+	        for (int r = r0, cy = y + r0 * tH; r < rMax; r++, cy += tH) {
+	            for (int c = c0, cx = x + c0 * tW; c < cMax; c++, cx += tW) {
+	                if (backing) {
+	                    paintCell(g, c, r, cx, cy, true);
+	                } else {
+	                    int tile = tiles[r][c];
+	                    if (tile < 0)
+	                        paintCell(g, c, r, cx, cy, true);
+	                    else if (tile > 0)
+	                        paintCell(g, c, r, cx, cy, false);
+	                }
 	            }
 	        }
     	}
     }
+
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        if ((a % b != 0) && (a < 0))
+            q--;
+        return q;
+    }
 }
@@ -56,6 +56,20 @@ public interface DisplayAccess
 	
 	void serviceRepaints();
 
+	/**
+	 * Paint areas skipped by EventDispatcher render policy and wait until screen is up to date
+	 */
+	void render();
+
+	/**
+	 * Wait until EventDispatcher ran all queued events
+	 * 
+	 * @param timeout
+	 *            wall clock milliseconds
+	 * @return <code>false</code> on timeout
+	 */
+	boolean awaitEvents(long timeout);
+
 	Displayable getCurrent();
 
 	DisplayableUI getCurrentUI();
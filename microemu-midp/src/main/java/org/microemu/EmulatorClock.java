@@ -0,0 +1,477 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Time seen by MIDlets of one emulator instance. Time runs <code>speed</code> times faster than wall clock, so idle
+ * waits of MIDlet shrink and CPU bound MIDlets run as fast as host allows.
+ *
+ * MIDlet classes call the static methods instead of System.currentTimeMillis(), Thread.sleep(long),
+ * Object.wait(long) and new Date(), the calls are rewritten by ChangeCallsMethodVisitor. Emulator code that waits
+ * on behalf of MIDlet converts MIDlet delays using {@link #toWallTime(long)}.
+ *
+ * In manual mode time stands still until a driver calls {@link #advance(long)}. Sleeping and waiting MIDlet threads
+ * are then woken one at a time by the driver when their deadline is reached, see
+ * org.microemu.app.util.SimulationDriver.
+ *
+ * Usage: EmulatorClock.getClock().getTime();
+ */
+public class EmulatorClock {
+
+	/**
+	 * Speed of clocks of new emulator instances
+	 */
+	public static double defaultSpeed = 1.0;
+
+	// Set when any clock runs with speed other than 1, static methods take the fast path until then
+	private static volatile boolean dilated = false;
+
+	/**
+	 * Time and System.nanoTime() when speed was set, replaced as a whole so readers need no lock
+	 */
+	private static final class Base {
+
+		final long time;
+
+		final long nanos;
+
+		final double speed;
+
+		Base(long time, long nanos, double speed) {
+			this.time = time;
+			this.nanos = nanos;
+			this.speed = speed;
+		}
+
+	}
+
+	/**
+	 * MIDlet thread in sleep(long) or wait(long) of manual clock
+	 */
+	private static final class Waiter {
+
+		final Thread thread;
+
+		final Object object;
+
+		final long deadline;
+
+		boolean fired = false;
+
+		Waiter(Thread thread, Object object, long deadline) {
+			this.thread = thread;
+			this.object = object;
+			this.deadline = deadline;
+		}
+
+	}
+
+	/**
+	 * EmulatorScheduler task run on time of manual clock
+	 */
+	private static final class TimedTask {
+
+		final EmulatorScheduler.Task task;
+
+		final long period;
+
+		long time;
+
+		long sequence;
+
+		TimedTask(EmulatorScheduler.Task task, long time, long period) {
+			this.task = task;
+			this.time = time;
+			this.period = period;
+		}
+
+	}
+
+	private volatile Base base;
+
+	private volatile boolean manual = false;
+
+	private volatile long manualTime;
+
+	// Thread calling advance() and wakeNext(), its own sleeps do not wait
+	private volatile Thread driver;
+
+	// Waiters of manual clock in order of arrival, guarded by this
+	private final List /* <Waiter> */waiters = new ArrayList();
+
+	// Tasks of manual clock, guarded by this
+	private final List /* <TimedTask> */timedTasks = new ArrayList();
+
+	private long taskSequence = 0;
+
+	public EmulatorClock() {
+		this.base = new Base(System.currentTimeMillis(), System.nanoTime(), 1.0);
+		if (defaultSpeed != 1.0) {
+			setSpeed(defaultSpeed);
+		}
+	}
+
+	/**
+	 * @return clock of EmulatorInstance bound to current thread
+	 */
+	public static EmulatorClock getClock() {
+		return EmulatorInstance.getInstance().getClock();
+	}
+
+	/**
+	 * @param speed
+	 *            time dilation factor, 4 makes MIDlet time run four times faster than wall clock
+	 */
+	public synchronized void setSpeed(double speed) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("speed " + speed);
+		}
+		if (manual) {
+			throw new IllegalStateException("manual clock");
+		}
+		long nanos = System.nanoTime();
+		long time = getTime(base, nanos);
+		if (speed != 1.0) {
+			dilated = true;
+		}
+		this.base = new Base(time, nanos, speed);
+	}
+
+	public double getSpeed() {
+		return base.speed;
+	}
+
+	/**
+	 * Stop the clock, from now on time moves only by {@link #advance(long)}. Call before MIDlet is started.
+	 * 
+	 * @param time
+	 *            MIDlet time to start from, fixed start time makes runs reproducible
+	 */
+	public synchronized void setManual(long time) {
+		this.manualTime = time;
+		this.manual = true;
+		dilated = true;
+	}
+
+	public boolean isManual() {
+		return manual;
+	}
+
+	/**
+	 * Move time of manual clock forward. Threads whose deadline is reached are woken one by one by
+	 * {@link #wakeNext()}.
+	 */
+	public synchronized void advance(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("millis " + millis);
+		}
+		if (!manual) {
+			throw new IllegalStateException("clock is not manual");
+		}
+		driver = Thread.currentThread();
+		manualTime += millis;
+	}
+
+	/**
+	 * Wake the thread with the earliest reached deadline, first arrived on equal deadlines. The thread is no longer
+	 * reported by {@link #isWaiting(Thread)} when this returns.
+	 * 
+	 * @return <code>false</code> if no deadline is reached
+	 */
+	public boolean wakeNext() {
+		Waiter next = null;
+		synchronized (this) {
+			driver = Thread.currentThread();
+			for (Iterator iter = waiters.iterator(); iter.hasNext();) {
+				Waiter w = (Waiter) iter.next();
+				if ((w.deadline <= manualTime) && ((next == null) || (w.deadline < next.deadline))) {
+					next = w;
+				}
+			}
+			if (next == null) {
+				return false;
+			}
+			next.fired = true;
+			waiters.remove(next);
+			if (next.object == null) {
+				notifyAll();
+				return true;
+			}
+		}
+		// Waiter registered holding the monitor, so it is in wait() when we get the monitor
+		synchronized (next.object) {
+			next.object.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return earliest sleep or wait deadline of manual clock or <code>Long.MAX_VALUE</code>
+	 */
+	public synchronized long getNextDeadline() {
+		long next = Long.MAX_VALUE;
+		for (Iterator iter = waiters.iterator(); iter.hasNext();) {
+			next = Math.min(next, ((Waiter) iter.next()).deadline);
+		}
+		return next;
+	}
+
+	/**
+	 * Run task once after delay of MIDlet time. With manual clock the task is run by the driver through
+	 * {@link #runNextTask()}, otherwise by EmulatorScheduler.
+	 */
+	public EmulatorScheduler.Task schedule(Runnable runnable, long delay) {
+		if (!manual) {
+			return EmulatorScheduler.schedule(runnable, toWallTime(delay));
+		}
+		EmulatorScheduler.Task task = EmulatorScheduler.createTask(runnable, false);
+		addTask(new TimedTask(task, manualTime + Math.max(0, delay), 0));
+		return task;
+	}
+
+	/**
+	 * Run task repeatedly, delay and period are MIDlet time, see {@link #schedule(Runnable, long)}
+	 */
+	public EmulatorScheduler.Task scheduleAtFixedRate(Runnable runnable, long delay, long period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period " + period);
+		}
+		if (!manual) {
+			return EmulatorScheduler.scheduleAtFixedRate(runnable, toWallTime(delay), toWallTime(period));
+		}
+		EmulatorScheduler.Task task = EmulatorScheduler.createTask(runnable, true);
+		addTask(new TimedTask(task, manualTime + Math.max(0, delay), period));
+		return task;
+	}
+
+	private synchronized void addTask(TimedTask t) {
+		t.sequence = taskSequence++;
+		timedTasks.add(t);
+	}
+
+	/**
+	 * @return time of the earliest task of manual clock or <code>Long.MAX_VALUE</code>
+	 */
+	public synchronized long getNextTaskTime() {
+		TimedTask next = nextTask();
+		return (next == null) ? Long.MAX_VALUE : next.time;
+	}
+
+	/**
+	 * Run the earliest due task of manual clock in current thread, first scheduled on equal times
+	 * 
+	 * @return <code>false</code> if no task is due
+	 */
+	public boolean runNextTask() {
+		TimedTask next;
+		synchronized (this) {
+			driver = Thread.currentThread();
+			next = nextTask();
+			if ((next == null) || (next.time > manualTime)) {
+				return false;
+			}
+			timedTasks.remove(next);
+			if (next.period > 0) {
+				next.time += next.period;
+				addTask(next);
+			}
+		}
+		// Task binds its own instance and context and clears them when done
+		EmulatorInstance previous = EmulatorInstance.getInstance();
+		try {
+			next.task.run();
+		} finally {
+			EmulatorInstance.setThreadInstance(previous);
+		}
+		return true;
+	}
+
+	// Called with lock on this, drops cancelled tasks
+	private TimedTask nextTask() {
+		TimedTask next = null;
+		for (Iterator iter = timedTasks.iterator(); iter.hasNext();) {
+			TimedTask t = (TimedTask) iter.next();
+			if (t.task.isCancelled()) {
+				iter.remove();
+			} else if ((next == null) || (t.time < next.time)
+					|| ((t.time == next.time) && (t.sequence < next.sequence))) {
+				next = t;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * @return <code>true</code> if thread sleeps or waits for time of manual clock
+	 */
+	public synchronized boolean isWaiting(Thread thread) {
+		for (Iterator iter = waiters.iterator(); iter.hasNext();) {
+			if (((Waiter) iter.next()).thread == thread) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void sleepManual(long millis) throws InterruptedException {
+		if (Thread.currentThread() == driver) {
+			// Timer task run by driver, time can't move while it runs
+			return;
+		}
+		synchronized (this) {
+			Waiter w = new Waiter(Thread.currentThread(), null, manualTime + millis);
+			waiters.add(w);
+			try {
+				while (!w.fired) {
+					wait();
+				}
+			} finally {
+				waiters.remove(w);
+			}
+		}
+	}
+
+	private void waitManual(Object object, long timeout) throws InterruptedException {
+		if (Thread.currentThread() == driver) {
+			// Like spurious wake-up
+			return;
+		}
+		Waiter w;
+		synchronized (this) {
+			w = new Waiter(Thread.currentThread(), object, manualTime + timeout);
+			waiters.add(w);
+		}
+		try {
+			object.wait();
+		} finally {
+			synchronized (this) {
+				waiters.remove(w);
+			}
+		}
+	}
+
+	/**
+	 * @return MIDlet time in milliseconds
+	 */
+	public long getTime() {
+		if (!dilated) {
+			return System.currentTimeMillis();
+		}
+		if (manual) {
+			return manualTime;
+		}
+		return getTime(base, System.nanoTime());
+	}
+
+	private static long getTime(Base b, long nanos) {
+		if (!dilated) {
+			return System.currentTimeMillis();
+		}
+		return b.time + (long) ((nanos - b.nanos) * b.speed / 1000000);
+	}
+
+	/**
+	 * Convert MIDlet time interval to wall clock interval, positive intervals stay positive. Manual clock has no wall
+	 * time, timed work uses {@link #schedule(Runnable, long)} instead.
+	 */
+	public long toWallTime(long millis) {
+		double s = base.speed;
+		if ((millis <= 0) || (s == 1.0) || manual) {
+			return millis;
+		}
+		return Math.max(1, (long) Math.ceil(millis / s));
+	}
+
+	/**
+	 * Replaces System.currentTimeMillis() in MIDlet code
+	 */
+	public static long currentTimeMillis() {
+		if (!dilated) {
+			return System.currentTimeMillis();
+		}
+		return getClock().getTime();
+	}
+
+	/**
+	 * Replaces Thread.sleep(long) in MIDlet code
+	 */
+	public static void sleep(long millis) throws InterruptedException {
+		if (!dilated || (millis <= 0)) {
+			Thread.sleep(millis);
+			return;
+		}
+		EmulatorClock clock = getClock();
+		if (clock.manual) {
+			clock.sleepManual(millis);
+			return;
+		}
+		Thread.sleep(clock.toWallTime(millis));
+	}
+
+	/**
+	 * Replaces Object.wait(long) in MIDlet code
+	 */
+	public static void objectWait(Object object, long timeout) throws InterruptedException {
+		if (!dilated || (timeout <= 0)) {
+			object.wait(timeout);
+			return;
+		}
+		EmulatorClock clock = getClock();
+		if (clock.manual) {
+			clock.waitManual(object, timeout);
+			return;
+		}
+		object.wait(clock.toWallTime(timeout));
+	}
+
+	/**
+	 * Let the driver of manual clock decide when current thread continues, called after MIDlet thread was started
+	 */
+	public static void yieldThread() throws InterruptedException {
+		if (!dilated) {
+			return;
+		}
+		EmulatorClock clock = getClock();
+		if (clock.manual) {
+			clock.sleepManual(0);
+		}
+	}
+
+	/**
+	 * Applied to result of new Date() in MIDlet code
+	 */
+	public static Date setTime(Date date) {
+		if (dilated) {
+			date.setTime(getClock().getTime());
+		}
+		return date;
+	}
+
+}
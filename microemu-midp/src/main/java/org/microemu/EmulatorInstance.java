@@ -0,0 +1,150 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.microedition.midlet.MIDlet;
+
+import org.microemu.device.Device;
+
+/**
+ * Holds the runtime state of one emulator: MicroEmulator implementation, running MIDlets, device and arbitrary
+ * attributes used by higher layers (config, class loader).
+ *
+ * Several instances can share one JVM. The instance is bound to a thread using
+ * {@link #setThreadInstance(EmulatorInstance)} and is inherited by all threads created from that thread (MIDlet
+ * threads, event dispatcher, timers). Threads without binding use the default instance, so a single emulator works
+ * without any setup.
+ *
+ * Usage: EmulatorInstance.getInstance();
+ *
+ */
+public class EmulatorInstance {
+
+	private static final EmulatorInstance defaultInstance = new EmulatorInstance(null);
+
+	private static final ThreadLocal /* <EmulatorInstance> */threadInstances = new InheritableThreadLocal();
+
+	private final String id;
+
+	volatile MicroEmulator emulator = null;
+
+	volatile MIDlet currentMIDlet = null;
+
+	final Map /* <MIDlet, MIDletContext> */midletContexts = new WeakHashMap();
+
+	final Map /* <GameCanvas, GameCanvasKeyAccess> */gameCanvasAccesses = new WeakHashMap();
+
+	final ArrayList players = new ArrayList();
+
+	private Device device;
+
+	private final EmulatorClock clock = new EmulatorClock();
+
+	private final Map attributes = new HashMap();
+
+	public EmulatorInstance(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return instance bound to current thread or default instance
+	 */
+	public static EmulatorInstance getInstance() {
+		EmulatorInstance instance = (EmulatorInstance) threadInstances.get();
+		if (instance != null) {
+			return instance;
+		}
+		return defaultInstance;
+	}
+
+	public static EmulatorInstance getDefaultInstance() {
+		return defaultInstance;
+	}
+
+	/**
+	 * Bind instance to current thread and threads created from it later.
+	 *
+	 * @param instance
+	 *            the instance or <code>null</code> to use default instance
+	 */
+	public static void setThreadInstance(EmulatorInstance instance) {
+		if (instance == defaultInstance) {
+			instance = null;
+		}
+		threadInstances.set(instance);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public boolean isDefault() {
+		return this == defaultInstance;
+	}
+
+	/**
+	 * @return emulator running in this instance or <code>null</code> before it is created
+	 */
+	public MicroEmulator getMicroEmulator() {
+		return emulator;
+	}
+
+	public Device getDevice() {
+		return device;
+	}
+
+	public void setDevice(Device device) {
+		this.device = device;
+	}
+
+	/**
+	 * @return time seen by MIDlets of this instance
+	 */
+	public EmulatorClock getClock() {
+		return clock;
+	}
+
+	public synchronized Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	public synchronized void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
+	}
+
+	public String toString() {
+		return "EmulatorInstance[" + ((id == null) ? "default" : id) + "]";
+	}
+
+}
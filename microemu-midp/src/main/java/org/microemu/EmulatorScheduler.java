@@ -0,0 +1,311 @@
+/*
+ *  MicroEmulator
+ *  Copyright (C) 2001-2010 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One thread pool running timed and background work of all emulator instances: MIDlet timers, Display ticker and
+ * alert timeouts and input method timers. Work that blocks for long, like tone playback, keeps its own thread.
+ *
+ * Each task runs bound to the EmulatorInstance, MIDletContext and context class loader of the thread that scheduled
+ * it. Tasks are accounted to their MIDletContext, so work of one MIDlet can be cancelled with
+ * {@link #cancel(MIDletContext)} without touching other instances.
+ *
+ * Usage: EmulatorScheduler.schedule(runnable, delay);
+ */
+public class EmulatorScheduler {
+
+	/**
+	 * Number of pool threads, used when the pool is created. At least two, so a task that blocks briefly does not
+	 * stop all timers.
+	 */
+	public static int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Receives exceptions thrown by tasks, set by the application to its logger. Without it the pool thread's
+	 * uncaught exception handler is used.
+	 */
+	public static Thread.UncaughtExceptionHandler exceptionHandler;
+
+	private static ScheduledThreadPoolExecutor executor;
+
+	// Tasks reference their context, so weak keys would not help. Entries are removed by cancel(MIDletContext).
+	private static final Map /* <MIDletContext, Set<Task>> */contextTasks = new HashMap();
+
+	private static final Map /* <MIDletContext, int[]> */contextRunCounts = new WeakHashMap();
+
+	private static int threadNumber = 0;
+
+	/**
+	 * Handle of scheduled work
+	 */
+	public static final class Task implements Runnable {
+
+		private final Runnable runnable;
+
+		private final boolean periodic;
+
+		private final EmulatorInstance instance;
+
+		private final MIDletContext midletContext;
+
+		private final ClassLoader contextClassLoader;
+
+		private volatile ScheduledFuture future;
+
+		private volatile boolean cancelled = false;
+
+		private Task(Runnable runnable, boolean periodic) {
+			this.runnable = runnable;
+			this.periodic = periodic;
+			this.instance = EmulatorInstance.getInstance();
+			this.midletContext = MIDletBridge.getMIDletContext();
+			this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+		}
+
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			Thread thread = Thread.currentThread();
+			EmulatorInstance.setThreadInstance(instance);
+			MIDletBridge.setThreadMIDletContext(midletContext);
+			thread.setContextClassLoader(contextClassLoader);
+			try {
+				countRun(midletContext);
+				runnable.run();
+			} catch (Throwable e) {
+				Thread.UncaughtExceptionHandler handler = exceptionHandler;
+				if (handler == null) {
+					handler = thread.getUncaughtExceptionHandler();
+				}
+				handler.uncaughtException(thread, e);
+			} finally {
+				MIDletBridge.setThreadMIDletContext(null);
+				EmulatorInstance.setThreadInstance(null);
+				thread.setContextClassLoader(null);
+				if (!periodic) {
+					untrack(this);
+				}
+			}
+		}
+
+		/**
+		 * Cancel the task, running task is not interrupted
+		 * 
+		 * @return <code>false</code> if the task already ran or was cancelled
+		 */
+		public boolean cancel() {
+			if (cancelled) {
+				return false;
+			}
+			cancelled = true;
+			untrack(this);
+			ScheduledFuture f = future;
+			// Without future the task is run by a manual EmulatorClock, which drops it
+			return (f == null) || f.cancel(false);
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public MIDletContext getMIDletContext() {
+			return midletContext;
+		}
+
+	}
+
+	private EmulatorScheduler() {
+	}
+
+	/**
+	 * Run task once after delay
+	 */
+	public static Task schedule(Runnable runnable, long delay) {
+		Task task = new Task(runnable, false);
+		track(task);
+		setFuture(task, getExecutor().schedule(task, Math.max(0, delay), TimeUnit.MILLISECONDS));
+		return task;
+	}
+
+	/**
+	 * Run task repeatedly, period is measured between start times
+	 */
+	public static Task scheduleAtFixedRate(Runnable runnable, long delay, long period) {
+		Task task = new Task(runnable, true);
+		track(task);
+		setFuture(task, getExecutor().scheduleAtFixedRate(task, Math.max(0, delay), period, TimeUnit.MILLISECONDS));
+		return task;
+	}
+
+	/**
+	 * Run task repeatedly, period is measured from end of one run to start of next one
+	 */
+	public static Task scheduleWithFixedDelay(Runnable runnable, long delay, long period) {
+		Task task = new Task(runnable, true);
+		track(task);
+		setFuture(task, getExecutor().scheduleWithFixedDelay(task, Math.max(0, delay), period, TimeUnit.MILLISECONDS));
+		return task;
+	}
+
+	/**
+	 * Run task as soon as a pool thread is free
+	 */
+	public static Task execute(Runnable runnable) {
+		return schedule(runnable, 0);
+	}
+
+	/**
+	 * Tracked task without a future, run by the caller, see {@link EmulatorClock#schedule(Runnable, long)}
+	 */
+	static Task createTask(Runnable runnable, boolean periodic) {
+		Task task = new Task(runnable, periodic);
+		track(task);
+		return task;
+	}
+
+	/**
+	 * Cancel all pending and periodic tasks scheduled from MIDletContext
+	 * 
+	 * @return number of cancelled tasks
+	 */
+	public static int cancel(MIDletContext midletContext) {
+		if (midletContext == null) {
+			return 0;
+		}
+		List tasks;
+		synchronized (contextTasks) {
+			Set set = (Set) contextTasks.remove(midletContext);
+			contextRunCounts.remove(midletContext);
+			if (set == null) {
+				return 0;
+			}
+			tasks = new ArrayList(set);
+		}
+		for (Iterator it = tasks.iterator(); it.hasNext();) {
+			((Task) it.next()).cancel();
+		}
+		return tasks.size();
+	}
+
+	/**
+	 * @return number of pending and periodic tasks of MIDletContext
+	 */
+	public static int getTaskCount(MIDletContext midletContext) {
+		synchronized (contextTasks) {
+			Set set = (Set) contextTasks.get(midletContext);
+			return (set == null) ? 0 : set.size();
+		}
+	}
+
+	/**
+	 * @return number of task runs of MIDletContext
+	 */
+	public static int getRunCount(MIDletContext midletContext) {
+		synchronized (contextTasks) {
+			int[] count = (int[]) contextRunCounts.get(midletContext);
+			return (count == null) ? 0 : count[0];
+		}
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread;
+					synchronized (EmulatorScheduler.class) {
+						thread = new Thread(r, "EmulatorScheduler-" + (threadNumber++));
+					}
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+
+	private static void setFuture(Task task, ScheduledFuture future) {
+		task.future = future;
+		if (task.cancelled) {
+			// Cancelled by cancel(MIDletContext) before the future was known
+			future.cancel(false);
+		}
+	}
+
+	private static void track(Task task) {
+		if (task.midletContext == null) {
+			return;
+		}
+		synchronized (contextTasks) {
+			Set set = (Set) contextTasks.get(task.midletContext);
+			if (set == null) {
+				set = new HashSet();
+				contextTasks.put(task.midletContext, set);
+			}
+			set.add(task);
+		}
+	}
+
+	private static void untrack(Task task) {
+		if (task.midletContext == null) {
+			return;
+		}
+		synchronized (contextTasks) {
+			Set set = (Set) contextTasks.get(task.midletContext);
+			if ((set != null) && set.remove(task) && set.isEmpty()) {
+				contextTasks.remove(task.midletContext);
+			}
+		}
+	}
+
+	private static void countRun(MIDletContext midletContext) {
+		if (midletContext == null) {
+			return;
+		}
+		synchronized (contextTasks) {
+			int[] count = (int[]) contextRunCounts.get(midletContext);
+			if (count == null) {
+				count = new int[1];
+				contextRunCounts.put(midletContext, count);
+			}
+			count[0]++;
+		}
+	}
+
+}
@@ -24,6 +24,7 @@ package org.microemu;
  * @author Andres Navarro
  */
 
+import javax.microedition.lcdui.Image;
 import javax.microedition.lcdui.game.GameCanvas;
 
 public interface GameCanvasKeyAccess {
@@ -32,4 +33,8 @@ public interface GameCanvasKeyAccess {
     void recordKeyReleased(GameCanvas canvas, int gameCode);
     void setActualKeyState(GameCanvas canvas, int keyState);
     void initBuffer();
+    /**
+     * @return offscreen buffer when it is the whole output of canvas paint or <code>null</code> if paint is overridden
+     */
+    Image getFrameBuffer(GameCanvas canvas);
 }
@@ -36,30 +36,25 @@ import javax.microedition.lcdui.game.GameCanvas;
 import javax.microedition.media.Player;
 import javax.microedition.midlet.MIDlet;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /**
  * Enables access to MIDlet and MIDletAccess by threadLocal
+ *
+ * The state is kept per {@link EmulatorInstance}, so several emulators can run in one JVM.
  */
 public class MIDletBridge {
 
     static ThreadLocal /*<MIDletContext>*/ threadMIDletContexts = new ThreadLocal();
 
-    static Map /*<MIDlet, MIDletContext>*/ midletContexts = new WeakHashMap();
-
-    static MicroEmulator emulator = null;
-
-    static MIDlet currentMIDlet = null;
-
     public static void setMicroEmulator(MicroEmulator emulator) {
-        MIDletBridge.emulator = emulator;
+        EmulatorInstance.getInstance().emulator = emulator;
     }
 
     public static MicroEmulator getMicroEmulator() {
-        return emulator;
+        return EmulatorInstance.getInstance().emulator;
     }
 
     public static void setThreadMIDletContext(MIDletContext midletContext) {
@@ -78,11 +73,17 @@ public class MIDletBridge {
     }
 
     public static void registerMIDletContext(MIDletContext midletContext) {
-        midletContexts.put(midletContext.getMIDlet(), midletContext);
+        Map midletContexts = EmulatorInstance.getInstance().midletContexts;
+        synchronized (midletContexts) {
+            midletContexts.put(midletContext.getMIDlet(), midletContext);
+        }
     }
 
     public static MIDletContext getMIDletContext(MIDlet midlet) {
-        return (MIDletContext) midletContexts.get(midlet);
+        Map midletContexts = EmulatorInstance.getInstance().midletContexts;
+        synchronized (midletContexts) {
+            return (MIDletContext) midletContexts.get(midlet);
+        }
     }
 
     public static MIDletContext getMIDletContext() {
@@ -90,11 +91,11 @@ public class MIDletBridge {
         if (c != null) {
             return c;
         }
-        return getMIDletContext(currentMIDlet);
+        return getMIDletContext(EmulatorInstance.getInstance().currentMIDlet);
     }
 
     public static void setCurrentMIDlet(MIDlet midlet) {
-        currentMIDlet = midlet;
+        EmulatorInstance.getInstance().currentMIDlet = midlet;
     }
 
     public static MIDlet getCurrentMIDlet() {
@@ -119,21 +120,21 @@ public class MIDletBridge {
 
 
     public static RecordStoreManager getRecordStoreManager() {
-        return emulator.getRecordStoreManager();
+        return getMicroEmulator().getRecordStoreManager();
     }
 
     public static String getAppProperty(String key) {
-        return emulator.getAppProperty(key);
+        return getMicroEmulator().getAppProperty(key);
     }
 
     public static InputStream getResourceAsStream(Class origClass, String name) {
-        return emulator.getResourceAsStream(name);
+        return getMicroEmulator().getResourceAsStream(name);
     }
 
 
     public static void notifyDestroyed() {
         MIDletContext midletContext = getMIDletContext();
-        emulator.notifyDestroyed(midletContext);
+        getMicroEmulator().notifyDestroyed(midletContext);
         destroyMIDletContext(midletContext);
     }
 
@@ -141,13 +142,14 @@ public class MIDletBridge {
         if (midletContext == null) {
             return;
         }
-        emulator.destroyMIDletContext(midletContext);
+        getMicroEmulator().destroyMIDletContext(midletContext);
         closeMediaPlayers();
-        if (midletContexts.containsValue(midletContext)) {
+        Map midletContexts = EmulatorInstance.getInstance().midletContexts;
+        synchronized (midletContexts) {
             for (Iterator i = midletContexts.entrySet().iterator(); i.hasNext(); ) {
                 Map.Entry entry = (Map.Entry) i.next();
                 if (entry.getValue() == midletContext) {
-                    midletContexts.remove(entry.getKey());
+                    i.remove();
                     break;
                 }
             }
@@ -155,56 +157,72 @@ public class MIDletBridge {
     }
 
     public static int checkPermission(String permission) {
-        return emulator.checkPermission(permission);
+        return getMicroEmulator().checkPermission(permission);
     }
 
     public static boolean platformRequest(String URL) {
-        return emulator.platformRequest(URL);
+        return getMicroEmulator().platformRequest(URL);
     }
 
     public static void clear() {
+        EmulatorInstance instance = EmulatorInstance.getInstance();
+        instance.currentMIDlet = null;
 
-        currentMIDlet = null;
-
-        // Preserve only Launcher Context
-        for (Iterator i = midletContexts.entrySet().iterator(); i.hasNext(); ) {
-            Map.Entry entry = (Map.Entry) i.next();
-            MIDlet test = ((MIDletContext) entry.getValue()).getMIDlet();
-            if (test instanceof Launcher) {
-                midletContexts.clear();
-                midletContexts.put(entry.getKey(), entry.getValue());
-                return;
+        Map midletContexts = instance.midletContexts;
+        synchronized (midletContexts) {
+            // Preserve only Launcher Context
+            for (Iterator i = midletContexts.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) i.next();
+                MIDlet test = ((MIDletContext) entry.getValue()).getMIDlet();
+                if (test instanceof Launcher) {
+                    midletContexts.clear();
+                    midletContexts.put(entry.getKey(), entry.getValue());
+                    return;
+                }
             }
+            // No Launcher found
+            midletContexts.clear();
         }
-        // No Launcher found
-        midletContexts.clear();
     }
 
-    static Map /*<GameCanvas, GameCanvasKeyAccess>*/ gameCanvasAccesses = new WeakHashMap();
-
     public static GameCanvasKeyAccess getGameCanvasKeyAccess(GameCanvas gameCanvas) {
-        return (GameCanvasKeyAccess) gameCanvasAccesses.get(gameCanvas);
+        Map gameCanvasAccesses = EmulatorInstance.getInstance().gameCanvasAccesses;
+        synchronized (gameCanvasAccesses) {
+            return (GameCanvasKeyAccess) gameCanvasAccesses.get(gameCanvas);
+        }
     }
 
     public static void registerGameCanvasKeyAccess(GameCanvas gameCanvas, GameCanvasKeyAccess access) {
-        gameCanvasAccesses.put(gameCanvas, access);
+        Map gameCanvasAccesses = EmulatorInstance.getInstance().gameCanvasAccesses;
+        synchronized (gameCanvasAccesses) {
+            gameCanvasAccesses.put(gameCanvas, access);
+        }
     }
 
-    private static ArrayList players = new ArrayList();
-
     public static void addMediaPlayer(Player player) {
-        players.add(player);
+        List players = EmulatorInstance.getInstance().players;
+        synchronized (players) {
+            players.add(player);
+        }
     }
 
     public static void removeMediaPlayer(Player player) {
-        players.remove(player);
+        List players = EmulatorInstance.getInstance().players;
+        synchronized (players) {
+            players.remove(player);
+        }
     }
 
     private static void closeMediaPlayers() {
-        for (int i = players.size() - 1; i >= 0; i--) {
-            ((Player) players.get(i)).close();
+        List players = EmulatorInstance.getInstance().players;
+        Object[] toClose;
+        synchronized (players) {
+            toClose = players.toArray();
+            players.clear();
+        }
+        for (int i = toClose.length - 1; i >= 0; i--) {
+            ((Player) toClose[i]).close();
         }
-        players.clear();
     }
 
 }
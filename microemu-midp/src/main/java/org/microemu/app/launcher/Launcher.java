@@ -33,6 +33,7 @@ import javax.microedition.lcdui.Displayable;
 import javax.microedition.lcdui.List;
 import javax.microedition.midlet.MIDlet;
 
+import org.microemu.EmulatorInstance;
 import org.microemu.MIDletEntry;
 import org.microemu.app.CommonInterface;
 
@@ -46,30 +47,48 @@ public class Launcher extends MIDlet implements CommandListener {
 
 	protected List menuList;
 
-	protected static String midletSuiteName = null;
+	private static final String SUITE_NAME_ATTRIBUTE = Launcher.class.getName() + ".suiteName";
 
-	protected static Vector midletEntries = new Vector();
+	private static final String ENTRIES_ATTRIBUTE = Launcher.class.getName() + ".entries";
+
+	protected Vector midletEntries;
 
 	protected MIDlet currentMIDlet = null;
 
 	public Launcher(CommonInterface common) {
 		this.common = common;
+		this.midletEntries = getMIDletEntries();
+	}
+
+	/**
+	 * MIDlet entries are kept per EmulatorInstance
+	 */
+	private static Vector getMIDletEntries() {
+		EmulatorInstance instance = EmulatorInstance.getInstance();
+		synchronized (instance) {
+			Vector entries = (Vector) instance.getAttribute(ENTRIES_ATTRIBUTE);
+			if (entries == null) {
+				entries = new Vector();
+				instance.setAttribute(ENTRIES_ATTRIBUTE, entries);
+			}
+			return entries;
+		}
 	}
 
 	public String getSuiteName() {
-		return midletSuiteName;
+		return (String) EmulatorInstance.getInstance().getAttribute(SUITE_NAME_ATTRIBUTE);
 	}
 
 	public static void setSuiteName(String midletSuiteName) {
-		Launcher.midletSuiteName = midletSuiteName;
+		EmulatorInstance.getInstance().setAttribute(SUITE_NAME_ATTRIBUTE, midletSuiteName);
 	}
 
 	public static void addMIDletEntry(MIDletEntry entry) {
-		midletEntries.addElement(entry);
+		getMIDletEntries().addElement(entry);
 	}
 
 	public static void removeMIDletEntries() {
-		midletEntries.removeAllElements();
+		getMIDletEntries().removeAllElements();
 	}
 
 	public MIDletEntry getSelectedMidletEntry() {
@@ -24,25 +24,29 @@
  
 package org.microemu.device;
 
+import org.microemu.EmulatorInstance;
 
+
+/**
+ * Device is resolved per {@link EmulatorInstance}.
+ */
 public class DeviceFactory 
 {
-  private static Device device;
-  
   
   public static Device getDevice()
   {
-    return device;
+    return EmulatorInstance.getInstance().getDevice();
   }
   
   
   public static void setDevice(Device device)
   {
-	  if (DeviceFactory.device != null) {
-		  DeviceFactory.device.destroy();
+	  EmulatorInstance instance = EmulatorInstance.getInstance();
+	  if (instance.getDevice() != null) {
+		  instance.getDevice().destroy();
 	  }
 	  device.init();
-	  DeviceFactory.device = device;
+	  instance.setDevice(device);
   }
   
 }
@@ -24,6 +24,12 @@
 
 package org.microemu.device.ui;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.microemu.EmulatorClock;
 import org.microemu.device.DeviceFactory;
 
 public class EventDispatcher implements Runnable {
@@ -32,72 +38,332 @@ public class EventDispatcher implements Runnable {
 
 	public static int maxFps = -1;
 
+	/**
+	 * Every PaintEvent is painted
+	 */
+	public static final int RENDER_ALWAYS = 0;
+
+	/**
+	 * PaintEvents are never painted, for instances nobody looks at
+	 */
+	public static final int RENDER_NEVER = 1;
+
+	/**
+	 * Only every Nth PaintEvent is painted, areas of skipped events are merged to the painted one
+	 */
+	public static final int RENDER_EVERY_NTH = 2;
+
+	/**
+	 * PaintEvents are painted only when screen is read, see {@link #render()}
+	 */
+	public static final int RENDER_ON_DEMAND = 3;
+
+	/**
+	 * Render policy of new dispatchers
+	 */
+	public static int defaultRenderPolicy = RENDER_ALWAYS;
+
+	public static int defaultRenderInterval = 1;
+
+	/**
+	 * Record queue wait and execution time of events in EventDispatcherStatistics
+	 */
+	public static boolean collectStatistics = false;
+
+	private static final AtomicReferenceFieldUpdater PAINT_AREA = AtomicReferenceFieldUpdater.newUpdater(
+			PaintEvent.class, int[].class, "pendingArea");
+
+	private static final AtomicReferenceFieldUpdater POINTER_RUNNABLE = AtomicReferenceFieldUpdater.newUpdater(
+			PointerEvent.class, Runnable.class, "runnable");
+
 	private volatile boolean cancelled = false;
-	
-	private Event head = null;
 
-	private Event tail = null;
+	/*
+	 * Intrusive multiple producers single consumer queue linked by Event.next. Producers swap the tail, only the
+	 * dispatcher thread moves the head. The stub keeps the queue non empty.
+	 */
+	private final Event stub = new RunnableEvent(null);
+
+	private Event head = stub;
+
+	private final AtomicReference tail = new AtomicReference(stub);
+
+	private volatile Thread consumer = null;
+
+	private volatile boolean consumerParked = false;
+
+	// serviceRepaints() waits for pending PaintEvent, dispatcher runs it before other queued events
+	private volatile boolean servicePaintRequested = false;
+
+	// Last PaintEvent put, new paints are merged to it until dispatcher takes its area
+	private final AtomicReference scheduledPaintEvent = new AtomicReference();
 
-	private PaintEvent scheduledPaintEvent = null;
+	// Last POINTER_DRAGGED event put, new drags replace its runnable until it is run
+	private final AtomicReference scheduledPointerDraggedEvent = new AtomicReference();
 
-	private PointerEvent scheduledPointerDraggedEvent = null;
+	// Events put to queue and events taken by dispatcher, equal when dispatcher is idle
+	private final AtomicLong enqueuedCount = new AtomicLong();
+
+	private volatile long dispatchedCount = 0;
 
 	private Object serviceRepaintsLock = new Object();
 	
+	// MIDlet time, frame rate limit follows time dilation of the instance
+	private final EmulatorClock clock = EmulatorClock.getClock();
+
 	private long lastPaintEventTime = 0;
 
+	private int renderPolicy = defaultRenderPolicy;
+
+	private int renderInterval = defaultRenderInterval;
+
+	private int paintEventCount = 0;
+
+	// Merged area of PaintEvents skipped by render policy
+	private PaintEvent skippedPaintEvent = null;
+
+	private boolean renderRequested = false;
+
 	public EventDispatcher() {
 	}
 	
 	public void run() {
+		consumer = Thread.currentThread();
 
 		while (!cancelled) {
-			Event event = null;
-			synchronized (this) {
-				if (head != null) {
-					event = head;
-
-					if (maxFps > 0 && event instanceof PaintEvent) {
-						long difference = System.currentTimeMillis() - lastPaintEventTime;
-						if (difference < (1000 / maxFps)) {
-							event = null;
-							try {
-								wait((1000 / maxFps) - difference);
-							} catch (InterruptedException e) {
-							}
-						}
-					}
-					
-					if (event != null) {
-						head = event.next;
-						if (head == null) {
-							tail = null;
-						}
-						if (event instanceof PointerEvent && ((PointerEvent) event).type == PointerEvent.POINTER_DRAGGED) {
-							scheduledPointerDraggedEvent = null;
-						}
-					}
-				} else {
-					try {
-						wait();
-					} catch (InterruptedException e) {
+			servicePromotedPaint();
+
+			Event event = poll();
+			if (event == null) {
+				consumerParked = true;
+				// Check again, producer could link event before it saw the flag
+				event = poll();
+				if (event == null) {
+					if (!cancelled) {
+						LockSupport.park(this);
 					}
+					consumerParked = false;
+					// Interrupt of event thread must not turn parking into busy loop
+					Thread.interrupted();
+					continue;
 				}
+				consumerParked = false;
 			}
 
+			if (event instanceof PaintEvent) {
+				dispatchPaint((PaintEvent) event);
+			} else {
+				dispatch(event);
+			}
+			dispatchedCount++;
+		}
+	}
+
+	/**
+	 * Run paint of pending PaintEvent now if serviceRepaints() is waiting for it, the event stays in queue but its
+	 * area is already taken then.
+	 */
+	private void servicePromotedPaint() {
+		if (servicePaintRequested) {
+			servicePaintRequested = false;
+			PaintEvent event = (PaintEvent) scheduledPaintEvent.get();
 			if (event != null) {
-				if (event instanceof PaintEvent) {
-					synchronized (serviceRepaintsLock) {
-						scheduledPaintEvent = null;
-						lastPaintEventTime = System.currentTimeMillis();
-						post(event);
-						serviceRepaintsLock.notifyAll();
-					}					
+				dispatchPaint(event);
+			}
+		}
+	}
+
+	private void dispatchPaint(PaintEvent event) {
+		// Manual clock moves only between ticks of SimulationDriver, the tick limits frame rate
+		if ((maxFps > 0) && !clock.isManual()) {
+			awaitPaintDeadline();
+		}
+		synchronized (serviceRepaintsLock) {
+			// Later repaints are put to new PaintEvent from now on
+			if (event.takeArea()) {
+				boolean render;
+				synchronized (this) {
+					render = isRenderEnabled(event);
+				}
+				if (render) {
+					lastPaintEventTime = clock.getTime();
+					dispatch(event);
+				} else if (collectStatistics) {
+					EventDispatcherStatistics.paintSkipped();
+				}
+			}
+			serviceRepaintsLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Park until frame time limited by maxFps elapsed. Producers are not blocked, paints put meanwhile are merged to
+	 * the waiting PaintEvent.
+	 */
+	private void awaitPaintDeadline() {
+		long deadline = lastPaintEventTime + (1000 / maxFps);
+		long remaining;
+		while (!cancelled && (remaining = deadline - clock.getTime()) > 0) {
+			LockSupport.parkNanos(this, clock.toWallTime(remaining) * 1000000L);
+			Thread.interrupted();
+		}
+	}
+
+	private void dispatch(Event event) {
+		if (!collectStatistics) {
+			post(event);
+			return;
+		}
+		long start = System.nanoTime();
+		post(event);
+		EventDispatcherStatistics.record(event, event.queuedTime, start, System.nanoTime());
+	}
+
+	private void enqueue(Event event) {
+		event.next = null;
+		Event prev = (Event) tail.getAndSet(event);
+		prev.next = event;
+	}
+
+	/**
+	 * Remove first event, called only by dispatcher thread.
+	 * 
+	 * @return event or <code>null</code> if queue is empty or producer did not link its event yet
+	 */
+	private Event poll() {
+		Event first = head;
+		Event next = first.next;
+		if (first == stub) {
+			if (next == null) {
+				return null;
+			}
+			head = next;
+			first = next;
+			next = next.next;
+		}
+		if (next != null) {
+			head = next;
+			return first;
+		}
+		if (first != tail.get()) {
+			return null;
+		}
+		enqueue(stub);
+		next = first.next;
+		if (next != null) {
+			head = next;
+			return first;
+		}
+		return null;
+	}
+
+	private void signal() {
+		if (consumerParked) {
+			Thread thread = consumer;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	private boolean isPaintPending() {
+		PaintEvent event = (PaintEvent) scheduledPaintEvent.get();
+		return (event != null) && (event.pendingArea != null);
+	}
+
+	/**
+	 * Decide if PaintEvent taken from queue is painted. Called with lock on this.
+	 */
+	private boolean isRenderEnabled(PaintEvent event) {
+		if (skippedPaintEvent != null) {
+			event.merge(skippedPaintEvent);
+			skippedPaintEvent = null;
+		}
+		boolean enabled;
+		if (renderRequested) {
+			renderRequested = false;
+			enabled = true;
+		} else if (renderPolicy == RENDER_NEVER) {
+			return false;
+		} else if (renderPolicy == RENDER_ON_DEMAND) {
+			enabled = false;
+		} else if (renderPolicy == RENDER_EVERY_NTH) {
+			enabled = (++paintEventCount >= renderInterval);
+		} else {
+			enabled = true;
+		}
+		if (enabled) {
+			paintEventCount = 0;
+		} else {
+			skippedPaintEvent = event;
+		}
+		return enabled;
+	}
+
+	/**
+	 * @param policy
+	 *            one of RENDER_ALWAYS, RENDER_NEVER, RENDER_EVERY_NTH or RENDER_ON_DEMAND
+	 * @param interval
+	 *            N for RENDER_EVERY_NTH
+	 */
+	public synchronized void setRenderPolicy(int policy, int interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("interval");
+		}
+		this.renderPolicy = policy;
+		this.renderInterval = interval;
+		this.paintEventCount = 0;
+		if (policy == RENDER_NEVER) {
+			skippedPaintEvent = null;
+		}
+	}
+
+	public synchronized int getRenderPolicy() {
+		return renderPolicy;
+	}
+
+	/**
+	 * Paint areas skipped by render policy now, e.g. when script or capture reads the screen. Returns when screen is
+	 * up to date. Does nothing with RENDER_NEVER policy.
+	 */
+	public void render() {
+		PaintEvent event;
+		PaintEvent pending = null;
+		synchronized (this) {
+			if (renderPolicy == RENDER_NEVER) {
+				return;
+			}
+			if (Thread.currentThread() == consumer) {
+				if (isPaintPending()) {
+					// dispatchPaint merges the skipped area into the pending one
+					pending = (PaintEvent) scheduledPaintEvent.get();
+					renderRequested = true;
+					event = null;
 				} else {
-					post(event);
+					event = skippedPaintEvent;
+					skippedPaintEvent = null;
+				}
+			} else {
+				if ((skippedPaintEvent == null) && !isPaintPending()) {
+					return;
+				}
+				renderRequested = true;
+				if (skippedPaintEvent != null) {
+					PaintEvent skipped = skippedPaintEvent;
+					skippedPaintEvent = null;
+					put(new PaintEvent(skipped.x, skipped.y, skipped.width, skipped.height));
 				}
+				event = null;
 			}
 		}
+		if (pending != null) {
+			// Already in event thread
+			dispatchPaint(pending);
+		} else if (event != null) {
+			dispatch(event);
+		} else if (Thread.currentThread() != consumer) {
+			serviceRepaints();
+		}
 	}
 
 	/**
@@ -105,55 +371,103 @@ public class EventDispatcher implements Runnable {
 	 */
 	public final void cancel() {
 		cancelled = true;
-		synchronized (this) {
-			notify();
+		Thread thread = consumer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		synchronized (serviceRepaintsLock) {
+			serviceRepaintsLock.notifyAll();
 		}
 	}
 
 	public void put(Event event) {
-		synchronized (this) {
-			if (event instanceof PaintEvent && scheduledPaintEvent != null) {
-				scheduledPaintEvent.merge((PaintEvent) event);
-			} else if (event instanceof PointerEvent && scheduledPointerDraggedEvent != null
-					&& ((PointerEvent) event).type == PointerEvent.POINTER_DRAGGED) {
-				scheduledPointerDraggedEvent.x = ((PointerEvent) event).x;
-				scheduledPointerDraggedEvent.y = ((PointerEvent) event).y;
-			} else {
-				if (event instanceof PaintEvent) {
-					scheduledPaintEvent = (PaintEvent) event;
-				}
-				if (event instanceof PointerEvent && ((PointerEvent) event).type == PointerEvent.POINTER_DRAGGED) {
-					scheduledPointerDraggedEvent = (PointerEvent) event;
+		if (event instanceof PaintEvent) {
+			PaintEvent scheduled = (PaintEvent) scheduledPaintEvent.get();
+			if ((scheduled != null) && scheduled.mergePending((PaintEvent) event)) {
+				if (collectStatistics) {
+					EventDispatcherStatistics.paintMerged();
 				}
-				if (tail != null) {
-					tail.next = event;
-				}
-				tail = event;
-				if (head == null) {
-					head = event;
+				return;
+			}
+			scheduledPaintEvent.set(event);
+		} else if (event instanceof PointerEvent && ((PointerEvent) event).type == PointerEvent.POINTER_DRAGGED) {
+			PointerEvent scheduled = (PointerEvent) scheduledPointerDraggedEvent.get();
+			if ((scheduled != null) && scheduled.replacePending((PointerEvent) event)) {
+				if (collectStatistics) {
+					EventDispatcherStatistics.dragMerged();
 				}
-				notify();
+				return;
+			}
+			scheduledPointerDraggedEvent.set(event);
+		}
+		if (collectStatistics) {
+			event.queuedTime = System.nanoTime();
+		}
+		// Counted before it is visible to dispatcher, awaitIdle() must not miss it
+		enqueuedCount.incrementAndGet();
+		enqueue(event);
+		signal();
+	}
+
+	/**
+	 * Wait until dispatcher took and ran all events put so far or waits for manual clock in an event. Returns at once
+	 * when called from dispatcher thread.
+	 * 
+	 * @param timeout
+	 *            wall clock milliseconds
+	 * @return <code>true</code> if dispatcher is idle or cancelled
+	 */
+	public boolean awaitIdle(long timeout) {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		while (!cancelled && (dispatchedCount != enqueuedCount.get())) {
+			Thread thread = consumer;
+			if ((thread != null) && clock.isManual() && clock.isWaiting(thread)) {
+				return true;
 			}
+			if (Thread.currentThread() == thread) {
+				return false;
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			LockSupport.parkNanos(this, 100000L);
 		}
+		return true;
 	}
 
 	public void put(Runnable runnable) {
 		put(new RunnableEvent(runnable));
 	}
 
+	/**
+	 * Paint pending PaintEvent ahead of other queued events and return when it is painted. Called from dispatcher
+	 * thread the paint runs inline.
+	 */
 	public void serviceRepaints() {
+		if (Thread.currentThread() == consumer) {
+			PaintEvent event = (PaintEvent) scheduledPaintEvent.get();
+			if ((event != null) && (event.pendingArea != null)) {
+				dispatchPaint(event);
+			}
+			return;
+		}
+		// dispatchPaint holds the lock from takeArea() until paint is done, a paint in progress is complete here
 		synchronized (serviceRepaintsLock) {
-			synchronized (this) {
-				if (scheduledPaintEvent == null) {
+			PaintEvent event = (PaintEvent) scheduledPaintEvent.get();
+			if (event == null) {
+				return;
+			}
+			while (event.pendingArea != null && !cancelled) {
+				servicePaintRequested = true;
+				Thread thread = consumer;
+				if (thread != null) {
+					LockSupport.unpark(thread);
+				}
+				try {
+					serviceRepaintsLock.wait();
+				} catch (InterruptedException e) {
 					return;
 				}
-
-				// TODO move scheduledPaintEvent to head
-			}
-
-			try {
-				serviceRepaintsLock.wait();
-			} catch (InterruptedException e) {
 			}
 		}
 	}
@@ -164,7 +478,10 @@ public class EventDispatcher implements Runnable {
 
 	public abstract class Event implements Runnable {
 
-		Event next = null;
+		volatile Event next = null;
+
+		// System.nanoTime() of put when statistics are collected
+		long queuedTime = 0;
 
 	}
 
@@ -172,11 +489,15 @@ public class EventDispatcher implements Runnable {
 
 		private int x = -1, y = -1, width = -1, height = -1;
 
+		// { x1, y1, x2, y2 } merged by producers, null after dispatcher took the area
+		volatile int[] pendingArea;
+
 		public PaintEvent(int x, int y, int width, int height) {
 			this.x = x;
 			this.y = y;
 			this.width = width;
 			this.height = height;
+			this.pendingArea = new int[] { x, y, x + width, y + height };
 		}
 
 		public void run() {
@@ -202,6 +523,42 @@ public class EventDispatcher implements Runnable {
 			this.height = yMax - y;
 		}
 
+		/**
+		 * Merge area of new event while this one waits in queue.
+		 * 
+		 * @return <code>false</code> if dispatcher already took the area
+		 */
+		boolean mergePending(PaintEvent event) {
+			int[] area;
+			int[] merged;
+			do {
+				area = pendingArea;
+				if (area == null) {
+					return false;
+				}
+				merged = new int[] { Math.min(area[0], event.x), Math.min(area[1], event.y),
+						Math.max(area[2], event.x + event.width), Math.max(area[3], event.y + event.height) };
+			} while (!PAINT_AREA.compareAndSet(this, area, merged));
+			return true;
+		}
+
+		/**
+		 * Fix the area to paint, called by dispatcher thread
+		 * 
+		 * @return <code>false</code> if area was already taken
+		 */
+		boolean takeArea() {
+			int[] area = (int[]) PAINT_AREA.getAndSet(this, null);
+			if (area == null) {
+				return false;
+			}
+			this.x = area[0];
+			this.y = area[1];
+			this.width = area[2] - area[0];
+			this.height = area[3] - area[1];
+			return true;
+		}
+
 	}
 
 	public final class PointerEvent extends EventDispatcher.Event {
@@ -212,7 +569,8 @@ public class EventDispatcher implements Runnable {
 
 		public static final short POINTER_DRAGGED = 2;
 
-		private Runnable runnable;
+		// null after the event was run
+		volatile Runnable runnable;
 
 		private short type;
 
@@ -228,7 +586,28 @@ public class EventDispatcher implements Runnable {
 		}
 
 		public void run() {
-			runnable.run();
+			Runnable r = (Runnable) POINTER_RUNNABLE.getAndSet(this, null);
+			if (r != null) {
+				r.run();
+			}
+		}
+
+		/**
+		 * Use runnable of newer drag event while this one waits in queue.
+		 * 
+		 * @return <code>false</code> if this event was already run
+		 */
+		boolean replacePending(PointerEvent event) {
+			Runnable r;
+			do {
+				r = runnable;
+				if (r == null) {
+					return false;
+				}
+			} while (!POINTER_RUNNABLE.compareAndSet(this, r, event.runnable));
+			this.x = event.x;
+			this.y = event.y;
+			return true;
 		}
 	}
 	
@@ -0,0 +1,165 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2002 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue wait and execution time of events dispatched by all EventDispatchers, collected when
+ * {@link EventDispatcher#collectStatistics} is set.
+ */
+public class EventDispatcherStatistics {
+
+	public static class EventTypeStatistics {
+
+		private final String name;
+
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+
+		private final LatencyHistogram execution = new LatencyHistogram();
+
+		EventTypeStatistics(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return time from put to start of execution in nanoseconds
+		 */
+		public LatencyHistogram getQueueWait() {
+			return queueWait;
+		}
+
+		/**
+		 * @return execution time in nanoseconds
+		 */
+		public LatencyHistogram getExecution() {
+			return execution;
+		}
+
+	}
+
+	private static final Map /* <Class, EventTypeStatistics> */types = new HashMap();
+
+	private static long mergedPaintCount;
+
+	private static long mergedDragCount;
+
+	private static long skippedPaintCount;
+
+	static void record(EventDispatcher.Event event, long queuedTime, long startTime, long endTime) {
+		EventTypeStatistics statistics = getStatistics(event.getClass());
+		if (queuedTime != 0) {
+			statistics.queueWait.record(startTime - queuedTime);
+		}
+		statistics.execution.record(endTime - startTime);
+	}
+
+	static synchronized void paintMerged() {
+		mergedPaintCount++;
+	}
+
+	static synchronized void dragMerged() {
+		mergedDragCount++;
+	}
+
+	static synchronized void paintSkipped() {
+		skippedPaintCount++;
+	}
+
+	private static synchronized EventTypeStatistics getStatistics(Class eventClass) {
+		EventTypeStatistics statistics = (EventTypeStatistics) types.get(eventClass);
+		if (statistics == null) {
+			String name = eventClass.getName();
+			name = name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('$')) + 1);
+			statistics = new EventTypeStatistics(name);
+			types.put(eventClass, statistics);
+		}
+		return statistics;
+	}
+
+	/**
+	 * @return statistics of each event type dispatched since last reset, sorted by name
+	 */
+	public static synchronized List /* <EventTypeStatistics> */getEventTypes() {
+		List list = new ArrayList(types.values());
+		Collections.sort(list, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return ((EventTypeStatistics) o1).name.compareTo(((EventTypeStatistics) o2).name);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * @return number of repaints merged to already queued PaintEvent
+	 */
+	public static synchronized long getMergedPaintCount() {
+		return mergedPaintCount;
+	}
+
+	/**
+	 * @return number of pointer drags merged to already queued drag event
+	 */
+	public static synchronized long getMergedDragCount() {
+		return mergedDragCount;
+	}
+
+	/**
+	 * @return number of PaintEvents not painted because of render policy
+	 */
+	public static synchronized long getSkippedPaintCount() {
+		return skippedPaintCount;
+	}
+
+	public static synchronized void reset() {
+		types.clear();
+		mergedPaintCount = 0;
+		mergedDragCount = 0;
+		skippedPaintCount = 0;
+	}
+
+	public static String getReport() {
+		StringBuffer buf = new StringBuffer("Event statistics:");
+		for (Iterator i = getEventTypes().iterator(); i.hasNext();) {
+			EventTypeStatistics statistics = (EventTypeStatistics) i.next();
+			buf.append("\n  ").append(statistics.name).append(" wait ").append(statistics.queueWait).append(
+					", run ").append(statistics.execution);
+		}
+		buf.append("\n  merged paints ").append(getMergedPaintCount()).append(", merged drags ").append(
+				getMergedDragCount()).append(", skipped paints ").append(getSkippedPaintCount());
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ *  MicroEmulator
+ *  Copyright (C) 2002 Bartek Teodorczyk <barteo@barteo.net>
+ *
+ *  It is licensed under the following two licenses as alternatives:
+ *    1. GNU Lesser General Public License (the "LGPL") version 2.1 or any newer version
+ *    2. Apache License (the "AL") Version 2.0
+ *
+ *  You may not use this file except in compliance with at least one of
+ *  the above two licenses.
+ *
+ *  You may obtain a copy of the LGPL at
+ *      http://www.gnu.org/licenses/old-licenses/lgpl-2.1.txt
+ *
+ *  You may obtain a copy of the AL at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the LGPL or the AL for the specific language governing permissions and
+ *  limitations.
+ */
+
+package org.microemu.device.ui;
+
+/**
+ * Log-linear histogram of durations in nanoseconds with about 6% precision, in the manner of HdrHistogram. Each
+ * power of two range is split to 16 buckets, so recording is a few shifts and one increment and memory does not
+ * depend on recorded values.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+	private long totalCount;
+
+	private long totalValue;
+
+	private long maxValue;
+
+	public synchronized void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucketIndex(nanos)]++;
+		totalCount++;
+		totalValue += nanos;
+		if (nanos > maxValue) {
+			maxValue = nanos;
+		}
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		totalCount = 0;
+		totalValue = 0;
+		maxValue = 0;
+	}
+
+	public synchronized long getCount() {
+		return totalCount;
+	}
+
+	public synchronized long getMax() {
+		return maxValue;
+	}
+
+	public synchronized long getMean() {
+		return (totalCount == 0) ? 0 : totalValue / totalCount;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return highest value in the bucket that contains given percentile, not more than recorded maximum
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long countAtPercentile = (long) Math.ceil(percentile / 100 * totalCount);
+		if (countAtPercentile < 1) {
+			countAtPercentile = 1;
+		}
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+			if (count >= countAtPercentile) {
+				return Math.min(highestValueInBucket(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestValueInBucket(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return count, mean, 50th, 90th, 99th percentiles and maximum in microseconds
+	 */
+	public synchronized String toString() {
+		return "n=" + totalCount + " mean=" + micros(getMean()) + " p50=" + micros(getValueAtPercentile(50))
+				+ " p90=" + micros(getValueAtPercentile(90)) + " p99=" + micros(getValueAtPercentile(99)) + " max="
+				+ micros(maxValue) + "us";
+	}
+
+	private static String micros(long nanos) {
+		long tenths = (nanos + 50) / 100;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+
+}
@@ -112,6 +112,7 @@ public class PCTone
             audioFormat,
             sampleRate * MAX_TIME);
          
+         // Blocks while tone plays, must not hold a shared EmulatorScheduler thread
          new Thread(pcToneRunnable).start();
       }
       catch (Exception e)